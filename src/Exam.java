@@ -1,15 +1,80 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.BreakIterator;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
 
 /*
 This is the exam for DM563 - Concurrent Programming, Spring 2022.
@@ -110,39 +175,62 @@ public class Exam {
      * @return a list of words that, within a file inside dir, appear on every line
      */
     private static List<LocatedWord> findWordsCommonToAllLines(Path dir) {
-        // long t1 = System.currentTimeMillis();
-        
-        List<LocatedWord> wordsCommonToAllLines = new ArrayList<>(); // List of all the LocatedWords that appear in all the lines
+        if (WORD_INDEX_FILE != null) { // If the query can be answered from the word index, see queryWordIndex()
+            QueryResults indexed = answerFromWordIndex(dir, Paths.get(WORD_INDEX_FILE), new QuerySet(true, false, Set.of(), Map.of()));
+            if (indexed != null) // Otherwise, the directory is scanned
+                return indexed.wordsCommonToAllLines;
+        }
 
-        ExecutorService executor = Executors.newWorkStealingPool(); // Contains a pool of available threads
-        ExecutorCompletionService<List<LocatedWord>> completionService = new ExecutorCompletionService<>(executor); // Used to manage the tasks of the executor
+        LocatedWordTable wordsCommonToAllLines = new LocatedWordTable(); // All the LocatedWords that appear in all the lines, in columns
+        collectWordsCommonToAllLines(dir, () -> false, words -> wordsCommonToAllLines.append(words, words.size())); // Collects the words of every file
 
-        try {
-            long pendingTasks = Files.walk(dir) // Walks through the directory
-                    //.parallel()
-                    .filter(Files::isRegularFile) // Checks whether is a regular file
-                    .filter(filePath -> filePath.toString().endsWith(".txt")) // Checks whether is a txt file
-                    .map(filePath ->
-                            completionService.submit(() -> computeWordsCommonToAllLines(filePath))) // Assign each filePath to a new task (thread)
-                    .count(); // Counts the pending tasks
+        return wordsCommonToAllLines; // Returns the list with the words that exist in all the lines of each text
+    }
 
-            while (pendingTasks > 0) { // For each task
-                wordsCommonToAllLines.addAll(completionService.take().get()); // Add the words that have been found to the list from the task
-                pendingTasks--; // Task is completed
-            }
+    /**
+     * Streaming version of findWordsCommonToAllLines(): the words of each file are given to the sink as soon as the
+     * task of the file completes, instead of being collected in a list, so that the first results are available
+     * before the whole directory has been searched. The sink is called by the thread that called this method, one
+     * word at a time, and the words of a file are never interleaved with the words of another file.
+     *
+     * @param dir  the directory to search
+     * @param sink receives the words that, within a file inside dir, appear on every line
+     * @param stop checked before each file, the search stops as soon as it returns true
+     */
+    private static void streamWordsCommonToAllLines(Path dir, Consumer<LocatedWord> sink, BooleanSupplier stop) {
+        collectWordsCommonToAllLines(dir, stop, words -> words.forEach(sink)); // Emits the words of each file
+    }
+
+    /**
+     * Method used by findWordsCommonToAllLines() and streamWordsCommonToAllLines() that gives the words of each file
+     * to the consumer, as a LocatedWordTable, on the thread that called this method
+     *
+     * @param dir    the directory to search
+     * @param stop   checked before each file, the search stops as soon as it returns true
+     * @param onFile receives the words of each file that, within the file, appear on every line
+     */
+    private static void collectWordsCommonToAllLines(Path dir, BooleanSupplier stop, Consumer<LocatedWordTable> onFile) {
+        QueryStats stats = QueryStats.start("allLines", dir); // Timings and counters, reported with -Dexam.stats=true and as JFR events
+
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        FileTasks<LocatedWordTable> tasks = submitTextFiles(dir, stop, FileScheduler.BY_SIZE, stats, executor, filePath -> // Walks through the directory in parallel and schedules the files, see FileScheduler
+                () -> computeWordsCommonToAllLines(filePath), LocatedWordTable::relocated); // The task of each filePath, and the words of its copies
+
+        try {
+            for (List<LocatedWordTable> results; !stop.getAsBoolean() && (results = tasks.take()) != null; ) // For each task, until all the files have been searched or the search is stopped
+                results.forEach(onFile); // Gives the words that have been found in each file of the task
         } catch (InterruptedException | ExecutionException | IOException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
+        tasks.close(); // Stops the walk if the query failed or has been stopped
+        stats.startPhase("shutdown"); // All the results have been collected
         try { // Tries to shut down the executor
             executor.shutdown(); // Shutdowns the executor
             executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate
         } catch (InterruptedException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
-        // long t2 = System.currentTimeMillis();
-        // System.out.println("Elapsed time: " + (t2 - t1) + "ms");
-        
-        return wordsCommonToAllLines; // Returns the list with the words that exist in all the lines of each text
+        stats.finish(); // Reports the statistics of the query
     }
 
     /**
@@ -167,58 +255,62 @@ public class Exam {
      * @return the line with the highest number of letters found among all text files inside of dir
      */
     private static Location longestLine(Path dir) {
-        // long t1 = System.currentTimeMillis();
+        if (WORD_INDEX_FILE != null) { // If the query can be answered from the word index, see queryWordIndex()
+            QueryResults indexed = answerFromWordIndex(dir, Paths.get(WORD_INDEX_FILE), new QuerySet(false, true, Set.of(), Map.of()));
+            if (indexed != null) // Otherwise, the directory is scanned
+                return indexed.longestLine;
+        }
+        QueryStats stats = QueryStats.start("longestLine", dir); // Statistics of the query
         
         AtomicReference<Location> longestLine = new AtomicReference<>(); // Atomic reference that indicates the Location of the longest line
         AtomicInteger maxChars = new AtomicInteger(-1); // AtomicInteger that contains the num of the chars of the longest line, initially set to -1 as no line has been found
 
-        ExecutorService executor = Executors.newWorkStealingPool(); // Contains a pool of available threads
-        ExecutorCompletionService<List<Object>> completionService = new ExecutorCompletionService<>(executor); // Used to manage the tasks of the executor
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        FileTasks<List<Object>> tasks = submitTextFiles(dir, () -> false, FileScheduler.BY_SIZE, stats, executor, filePath -> // Walks through the directory in parallel and schedules the files, see FileScheduler
+                () -> computeLongestLine(filePath), Exam::relocateLongestLine); // The task of each filePath, and the longest line of its copies
 
         try {
-            long pendingTasks = Files.walk(dir) // Walks through the directory
-                    //.parallel()
-                    .filter(Files::isRegularFile) // Checks whether is a regular file
-                    .filter(filePath -> filePath.toString().endsWith(".txt")) // Checks whether is a txt file
-                    .map(filePath ->
-                            completionService.submit(() -> computeLongestLine(filePath))) // Assign each filePath to a new task (thread)
-                    .count(); // Counts the pending tasks
-
-            while (pendingTasks > 0) { // For each task
+            while (true) { // For each task, until all the files have been searched
 
                 try {
-                    // Gets the longest line of the file in the form of a List<Object> where:
+                    // Gets the longest line of each file of the task in the form of a List<Object> where:
                     // -> index 0: Integer that indicates the num of char of the longest line
                     // -> index 1: Location that indicates the location of the longest line
-                    List<Object> longestLineOfEachFile = completionService.take().get();
+                    List<List<Object>> results = tasks.take();
+                    if (results == null) // If all the tasks have completed
+                        break;
 
-                    if ((int) longestLineOfEachFile.get(0) > maxChars.get()) { // If a new longest line is found
-                        maxChars.set((int) longestLineOfEachFile.get(0)); // Updates the value with the new amount of chars
-                        longestLine.set((Location) longestLineOfEachFile.get(1)); // Updates the location the longest line
-                    }
+                    for (List<Object> longestLineOfEachFile : results) {
+                        if (longestLineOfEachFile.get(1) == null) // If the file has no lines, there is nothing to compare
+                            continue;
 
-                    else if ((int) longestLineOfEachFile.get(0) == maxChars.get()) { // Otherwise, if the same amount of chars are found in the 2 lines, then
-                        longestLine.set(compareStringsLexicographically(longestLine.get(), (Location) longestLineOfEachFile.get(1))); // Updates the location the longest line that has the path the precedes the other lexicographically
-                        maxChars.set((int) longestLineOfEachFile.get(0)); // Updates the value with the new amount of chars
+                        if ((int) longestLineOfEachFile.get(0) > maxChars.get()) { // If a new longest line is found
+                            maxChars.set((int) longestLineOfEachFile.get(0)); // Updates the value with the new amount of chars
+                            longestLine.set((Location) longestLineOfEachFile.get(1)); // Updates the location the longest line
+                        }
+
+                        else if ((int) longestLineOfEachFile.get(0) == maxChars.get()) { // Otherwise, if the same amount of chars are found in the 2 lines, then
+                            longestLine.set(compareStringsLexicographically(longestLine.get(), (Location) longestLineOfEachFile.get(1))); // Updates the location the longest line that has the path the precedes the other lexicographically
+                            maxChars.set((int) longestLineOfEachFile.get(0)); // Updates the value with the new amount of chars
+                        }
                     }
 
-                } catch (InterruptedException | ExecutionException exception) { // If an error occurs
+                } catch (ExecutionException exception) { // If the task failed, the other files are still searched
                     exception.printStackTrace(); // Prints the error
                 }
-
-                pendingTasks--; // Task is completed
             }
-        } catch (IOException exception) { // If an error occurs
+        } catch (InterruptedException | IOException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
+        tasks.close(); // Stops the walk if the query failed
+        stats.startPhase("shutdown"); // All the results have been collected
         try { // Tries to shut down the executor
             executor.shutdown(); // Shutdowns the executor
             executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate
         } catch (InterruptedException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
-        // long t2 = System.currentTimeMillis();
-        // System.out.println("Elapsed time: " + (t2 - t1) + "ms");
+        stats.finish(); // Reports the statistics of the query
 
         return longestLine.get(); // Returns the location of the longest line
     }
@@ -254,45 +346,50 @@ public class Exam {
      * @return an optional LocatedWord about a word containing exactly n vowels
      */
     private static Optional<LocatedWord> wordWithVowels(Path dir, int vowels) {
-        // long t1 = System.currentTimeMillis();
+        if (WORD_INDEX_FILE != null) { // If the query can be answered from the word index, see queryWordIndex()
+            QueryResults indexed = answerFromWordIndex(dir, Paths.get(WORD_INDEX_FILE), new QuerySet(false, false, Set.of(vowels), Map.of()));
+            if (indexed != null) // Otherwise, the directory is scanned
+                return indexed.wordsWithVowels.get(vowels);
+        }
+        QueryStats stats = QueryStats.start("vowels", dir); // Statistics of the query
 
         AtomicReference<Optional<LocatedWord>> wordWithVowels = new AtomicReference<>(Optional.empty()); // LocatedWord containing the word with the requested amount of vowels, initially empty (Optional.empty())
-        AtomicBoolean found = new AtomicBoolean(false); // Boolean to check if the wordWithVowel has been found
+        AtomicBoolean found = new AtomicBoolean(false); // Shared stop signal: set by the first task that finds a word, checked by the walk and by every task
 
-        ExecutorService executor = Executors.newWorkStealingPool(); // Contains a pool of available threads
-        ExecutorCompletionService<Optional<LocatedWord>> completionService = new ExecutorCompletionService<>(executor); // Used to manage the tasks of the executor
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        FileTasks<Optional<LocatedWord>> tasks = submitTextFiles(dir, found::get, false, stats, executor, filePath -> // Walks through the directory in parallel, and stops submitting new tasks as soon as a word has been found
+                () -> computeWordWithVowels(filePath, vowels, found), // The task of each filePath, submitted as soon as it is found
+                (word, copy) -> word.map(w -> new LocatedWord(w.word, copy))); // The same word is in each copy
 
         try {
-            long pendingTasks = Files.walk(dir) // Walks through the directory
-                    //.parallel()
-                    .filter(Files::isRegularFile) // Checks whether is a regular file
-                    .filter(filePath -> filePath.toString().endsWith(".txt")) // Checks whether is a txt file
-                    .map(filePath ->
-                            completionService.submit(() -> computeWordWithVowels(filePath, vowels))) // Assign each filePath to a new task (thread)
-                    .count(); // Counts the pending tasks
+            while (wordWithVowels.get().isEmpty()) { // While the word has not been found yet
 
-            while (pendingTasks > 0 && !found.get()) { // While there are still tasks that have not completed yet AND the word has not been found yet
-
-                Optional<LocatedWord> word = completionService.take().get(); // Gets the result of the task
+                try {
+                    List<Optional<LocatedWord>> results = tasks.take(); // Gets the result of the task
+                    if (results == null) // If all the files have been searched
+                        break;
 
-                if (!word.get().word.equals("")) { // If the word is not empty
-                    wordWithVowels.set(Optional.of(new LocatedWord(word.get().word, word.get().filepath))); // Set the value of wordWithVowel to have the value of the found word
-                    found.set(true); // Set the boolean to true as the word has been found
+                    for (Optional<LocatedWord> word : results)
+                        if (word.isPresent() && !word.get().word.equals("") && wordWithVowels.get().isEmpty()) // If the word is not empty
+                            wordWithVowels.set(Optional.of(new LocatedWord(word.get().word, word.get().filepath))); // Set the value of wordWithVowel to have the value of the found word
+                } catch (ExecutionException exception) { // If the task failed, the other files can still contain the word
+                    exception.printStackTrace(); // Prints the error
                 }
-
-                pendingTasks--; // Task is completed
             }
-        } catch (InterruptedException | ExecutionException | IOException exception) { // If an error occurs
+        } catch (InterruptedException | IOException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
+
+        found.set(true); // Stops the tasks that are still scanning their file
+        tasks.close(); // Stops the walk and cancels the tasks that have not started yet
+        stats.startPhase("shutdown"); // All the results have been collected
         try { // Tries to shut down the executor
             executor.shutdown(); // Shutdowns the executor
-            executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate
+            executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate, which is quick as every task checks the stop signal
         } catch (InterruptedException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
-        // long t2 = System.currentTimeMillis();
-        // System.out.println("Elapsed time: " + (t2 - t1) + "ms");
+        stats.finish(); // Reports the statistics of the query
 
         return wordWithVowels.get(); // Returns the LocatedWord
     }
@@ -324,51 +421,89 @@ public class Exam {
      * @return a list of locations where the given suffix has been found
      */
     private static List<LocatedWord> wordsEndingWith(Path dir, String suffix, int limit) {
-        // long t1 = System.currentTimeMillis();
+        if (WORD_INDEX_FILE != null) { // If the query can be answered from the word index, see queryWordIndex()
+            QueryResults indexed = answerFromWordIndex(dir, Paths.get(WORD_INDEX_FILE), new QuerySet(false, false, Set.of(), Map.of(suffix, limit)));
+            if (indexed != null) // Otherwise, the directory is scanned
+                return indexed.wordsEndingWith.get(suffix);
+        }
+
+        LocatedWordTable wordsEndingWith = new LocatedWordTable(); // All the LocatedWords that end with the requested suffix, in columns
+        collectWordsEndingWith(dir, suffix, limit, () -> false, words -> wordsEndingWith.append(words, words.size())); // Collects at most limit words
+
+        return wordsEndingWith; // Returns the words, there are no more than the limit
+    }
 
-        List<LocatedWord> wordsEndingWith = new ArrayList<>(); // List of all the LocatedWords that end with the requested suffix
-        AtomicBoolean found = new AtomicBoolean(false); // Boolean that indicates if the word has been found
+    /**
+     * Streaming version of wordsEndingWith(): the words of each file are given to the sink as soon as the task of
+     * the file completes, and no more than limit words are given. The sink is called by the thread that called this
+     * method, one word at a time.
+     *
+     * @param dir    the directory to search
+     * @param suffix the suffix to be searched for
+     * @param limit  the maximum number of words given to the sink
+     * @param sink   receives the words ending with the suffix
+     * @param stop   checked before each file, the search stops as soon as it returns true
+     */
+    private static void streamWordsEndingWith(Path dir, String suffix, int limit, Consumer<LocatedWord> sink, BooleanSupplier stop) {
+        collectWordsEndingWith(dir, suffix, limit, stop, words -> words.forEach(sink)); // Emits the words of each file
+    }
+
+    /**
+     * Method used by wordsEndingWith() and streamWordsEndingWith() that gives the words of each file to the consumer,
+     * as a LocatedWordTable, on the thread that called this method. The tables given together hold at most limit words.
+     *
+     * @param dir    the directory to search
+     * @param suffix the suffix to be searched for
+     * @param limit  the maximum number of words given to the consumer
+     * @param stop   checked before each file, the search stops as soon as it returns true
+     * @param onFile receives the words ending with the suffix of each file
+     */
+    private static void collectWordsEndingWith(Path dir, String suffix, int limit, BooleanSupplier stop, Consumer<LocatedWordTable> onFile) {
+        QueryStats stats = QueryStats.start("suffix", dir); // Statistics of the query
 
-        ExecutorService executor = Executors.newWorkStealingPool(); // Contains a pool of available threads
-        ExecutorCompletionService<List<LocatedWord>> completionService = new ExecutorCompletionService<>(executor); // Used to manage the tasks of the executor
+        int emitted = 0; // Number of words given to the consumer
+        AtomicInteger remaining = new AtomicInteger(limit); // Number of words that can still be added: each task reserves one before adding a word
+        AtomicBoolean found = new AtomicBoolean(limit <= 0); // Shared stop signal: set when the limit is reached, checked by the walk and by every task
+
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        FileTasks<LocatedWordTable> tasks = submitTextFiles(dir, () -> found.get() || stop.getAsBoolean(), false, stats, executor, filePath -> // Walks through the directory in parallel, and stops submitting new tasks as soon as the limit is reached
+                () -> computeWordsEndingWith(filePath, suffix, remaining, found), // The task of each filePath, submitted as soon as it is found
+                LocatedWordTable::relocated); // The same words are in each copy, the limit is applied when they are given to the consumer
 
         try {
-            long pendingTasks = Files.walk(dir) // Walks through the directory
-                    //.parallel()
-                    .filter(Files::isRegularFile) // Checks whether is a regular file
-                    .filter(filePath -> filePath.toString().endsWith(".txt")) // Checks whether is a txt file
-                    .map(filePath ->
-                            completionService.submit(() -> computeWordsEndingWith(filePath, suffix, limit))) // Create a new thread & execute the following code
-                    .count(); // Counts the pending tasks
+            while (emitted < limit && !stop.getAsBoolean()) { // While the limit has not been reached yet, and the search has not been stopped
 
-            while (pendingTasks > 0 && !found.get()) { // While there are still tasks that have not completed yet AND the word has not been found yet
+                try {
+                    List<LocatedWordTable> results = tasks.take();
+                    if (results == null) // If all the files have been searched
+                        break;
 
-                if (wordsEndingWith.size() <= limit) { // If not enough words with the suffix have been found
-                    wordsEndingWith.addAll(completionService.take().get()); // Add all the words that have been found from the current task to the list
-                } else { // Otherwise
-                    found.set(true); // Set the value of the boolean to true as all the words have been found
-                    break; // and strop the while loop
+                    for (LocatedWordTable words : results) { // Gives the words that have been found by the current task
+                        if (emitted == limit) // Makes sure that no more words than the limit are given
+                            break;
+                        words.truncate(Math.min(words.size(), limit - emitted));
+                        onFile.accept(words);
+                        emitted += words.size();
+                    }
+                } catch (ExecutionException exception) { // If the task failed, the other files can still contain words
+                    exception.printStackTrace(); // Prints the error
                 }
-
-                pendingTasks--; // Task is completed
             }
-        } catch (InterruptedException | ExecutionException | IOException exception) { // If an error occurs
+        } catch (InterruptedException | IOException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
+
+        found.set(true); // Stops the tasks that are still scanning their file
+        tasks.close(); // Stops the walk and cancels the tasks that have not started yet
+        stats.startPhase("shutdown"); // All the results have been collected
         try { // Tries to shut down the executor
             executor.shutdown(); // Shutdowns the executor
-            executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate
+            executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate, which is quick as every task checks the stop signal
         } catch (InterruptedException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
 
-        // long t2 = System.currentTimeMillis();
-        // System.out.println("Elapsed time: " + (t2 - t1) + "ms");
-
-        if (wordsEndingWith.size() > 0) // If there are words in the list
-            return wordsEndingWith.subList(0, Math.min(limit, wordsEndingWith.size())); // return the words, but make sure that no more words than the limit are returned.
-
-        return wordsEndingWith; // Otherwise, return the empty list, as there are no words in it.
+        stats.finish(); // Reports the statistics of the query
     }
 
     // Do not change this class
@@ -403,30 +538,44 @@ public class Exam {
     /********************************* Used in method wordsCommonToAllLines() ****************************************/
 
     /**
-     * Method that is used in wordsCommonToAllLines() to find the common words of each file
+     * Method that is used in wordsCommonToAllLines() to find the common words of each file.
+     * The file is read only while some words can still be common to all the lines.
      * @param dir directory of the file
-     * @return List<LocatedWord> with all the common words
+     * @return LocatedWordTable with all the common words
      */
-    private static List<LocatedWord> computeWordsCommonToAllLines(Path dir) {
+    private static LocatedWordTable computeWordsCommonToAllLines(Path dir) {
 
-        List<LocatedWord> wordsCommonToAllLinesOfFile = new ArrayList<>(); // List of all the LocatedWords that appear in all the lines
+        LocatedWordTable wordsCommonToAllLinesOfFile = new LocatedWordTable(); // All the LocatedWords that appear in all the lines, sharing the path of the file
+        AtomicBoolean noCommonWords = new AtomicBoolean(false); // Set as soon as a part of the file has no common words, so that the rest is not read
+
+        CachedSummary cached = SummaryCache.lookup(dir, () -> false); // The partial results of the file kept by the summary cache, null if it is disabled
+        if (cached != null) {
+            if (cached.commonWords != null) // If the file has at least one line that is not blank
+                for (String w : cached.commonWords)
+                    wordsCommonToAllLinesOfFile.add(w, dir);
+            return wordsCommonToAllLinesOfFile;
+        }
 
         try {
-            Optional<List<String>> words = Files.lines(dir) // Reads the lines of the text file
-                    //.parallel()
-                    .filter(line -> !line.isBlank()) // Filters out the lines that are blank as we don't care about them
-                    .map(Exam::extractWords) // Transforms Stream<String> to Stream<List<String>> where it contains lines and all the words for each line
-                    .reduce((line1, line2) -> { // Finds the commonWords
-                        line2.retainAll(line1); // Intersection of the two lines
-                        return line2; // Returns one line instead of two, that has all the words that appear in both of the lines
-                    });
+            Optional<List<String>> words; // The words common to all the lines that are not blank, empty if there is no such line
+            if (isLargeFile(dir)) // If the file is large, its chunks are processed in parallel and their common words are intersected
+                words = processChunks(dir, (channel, from, to) -> {
+                    if (noCommonWords.get())
+                        return Optional.empty();
+                    try (LineSegmentReader lines = LineSegmentReader.open(channel, from, to)) { // Reads the lines of the chunk
+                        return commonWordsOfLines(lines, noCommonWords);
+                    }
+                }, Exam::intersectCommonWords);
+            else
+                try (LineSegmentReader lines = LineSegmentReader.open(dir)) { // Reads the lines of the text file
+                    words = commonWordsOfLines(lines, noCommonWords);
+                }
 
             if (words.isPresent()) // If there are common words
-                for (String w : words.get()) // For each of the word that is found
-                    if(!wordIsDuplicate(w,wordsCommonToAllLinesOfFile)) // If the word is not a duplicate
-                        wordsCommonToAllLinesOfFile.add(new LocatedWord(w, dir)); // Add the word in the form of LocatedWord to the list
+                for (String w : words.get()) // For each of the word that is found, which are all distinct
+                    wordsCommonToAllLinesOfFile.add(w, dir); // Add the word to the table
 
-        } catch (IOException exception) { // If an error occurs
+        } catch (IOException | UncheckedIOException exception) { // If an error occurs
             exception.printStackTrace(); // Prints the error
         }
 
@@ -434,30 +583,252 @@ public class Exam {
     }
 
     /**
-     * Method to check if a list contains a word more than one time.
-     *
-     * @param w word
-     * @param wordsCommonToAllLines list
-     * @return True or False
+     * Method that finds the words common to a sequence of lines, ignoring the lines that are blank.
+     * It stops reading the lines as soon as no word can be common to all of them.
+     * @param lines the lines of a file, or of a chunk of a file, read one segment at a time
+     * @param noCommonWords stop signal shared by the chunks of the file, set when no word is common to the lines
+     * @return the distinct common words, or Optional.empty() if all the lines are blank
+     * @throws IOException if the lines cannot be read
+     */
+    private static Optional<List<String>> commonWordsOfLines(LineSegmentReader lines, AtomicBoolean noCommonWords) throws IOException {
+
+        CommonWordsFinder finder = new CommonWordsFinder(); // Intersection of the lines read so far
+        for (String segment = lines.next(); segment != null && !noCommonWords.get(); segment = lines.next()) { // Stops reading as soon as there are no candidate words left
+            finder.addSegment(segment, lines.endsLine());
+            if (finder.isEmpty())
+                noCommonWords.set(true);
+        }
+
+        return finder.commonWords(); // Returns the common words
+    }
+
+    /**
+     * Method that merges the common words of two consecutive chunks of a file
+     * @param words1 the common words of the first chunk
+     * @param words2 the common words of the second chunk
+     * @return the words common to both chunks
      */
-    private static boolean wordIsDuplicate(String w,List<LocatedWord> wordsCommonToAllLines) {
+    private static Optional<List<String>> intersectCommonWords(Optional<List<String>> words1, Optional<List<String>> words2) {
+
+        if (words1.isEmpty() || words2.isEmpty()) // A chunk with only blank lines does not restrict the common words
+            return words1.isEmpty() ? words2 : words1;
+
+        words1.get().retainAll(new HashSet<>(words2.get())); // Intersection of the two chunks
+        return words1;
+    }
+
+    /**
+     * Computes the words common to all the lines that are not blank, one line at a time. The words of the first line
+     * are interned to int ids, and the candidate words are kept in a BitSet that is intersected with the ids found in
+     * each following line; the words of these lines are looked up by their offsets, so no String is created for them.
+     * Once no candidate is left, the following lines are not even tokenized.
+     * A long line can be added in several segments (see LineSegmentReader): the words of its segments are collected
+     * and the candidates are intersected with them at the end of the line.
+     */
+    private static class CommonWordsFinder {
+        private final WordIds ids = new WordIds(); // the ids of the words of the first line that is not blank
+        private final BitSet candidates = new BitSet(); // the ids of the words common to all the lines added so far
+        private final BitSet wordsOfLine = new BitSet(); // the candidates found in the current line
+        private boolean started = false; // whether a line that is not blank has been added
+        private boolean inFirstLine = false; // whether the segments of the first line that is not blank are being added
+        private boolean lineHasText = false; // whether a segment of the current line is not blank
+
+        /**
+         * Method that intersects the candidate words with the words of a segment of a line
+         * @param segment the segment, the whole line if it is not too long
+         * @param endsLine whether the segment is the last one of its line
+         */
+        private void addSegment(String segment, boolean endsLine) {
+            if (!segment.isBlank() && !isEmpty()) // Blank lines are ignored, and lines are not tokenized once no candidate is left
+                addWords(WordTokenizer.of(segment));
+            if (endsLine)
+                endLine();
+        }
 
-        AtomicBoolean wordIsDuplicate = new AtomicBoolean(false); //Boolean that looks out for duplicates
+        /**
+         * Method that intersects the candidate words with the words of a segment of a line that has already been tokenized
+         * @param segment the segment, the whole line if it is not too long
+         * @param tokenizer the tokenizer holding the words of the segment
+         * @param endsLine whether the segment is the last one of its line
+         */
+        private void addSegment(String segment, WordTokenizer tokenizer, boolean endsLine) {
+            if (!segment.isBlank() && !isEmpty()) // Blank lines are ignored, and nothing changes once no candidate is left
+                addWords(tokenizer);
+            if (endsLine)
+                endLine();
+        }
+
+        /**
+         * Method that collects the words of a segment that is not blank
+         * @param tokenizer the tokenizer holding the words of the segment
+         */
+        private void addWords(WordTokenizer tokenizer) {
+
+            if (!started) { // If this is the first line that is not blank, all of its words are candidates
+                for (int i = 0; i < tokenizer.count(); i++)
+                    candidates.set(ids.add(tokenizer.word(i)));
+                inFirstLine = true;
+                return;
+            }
 
-        for (LocatedWord locatedWord : wordsCommonToAllLines) // For every word that already is in list wordsCommonToAllLines
-            if (locatedWord.word.equals(w)){ // If a word already exists (is a duplicate)
-                wordIsDuplicate.set(true); // Sets duplicate to true
-                break; // Stops the for loop
+            for (int i = 0; i < tokenizer.count(); i++) { // For each word of the segment
+                int id = tokenizer.idOf(i, ids); // The id of the word, -1 if it is not in the first line
+                if (id >= 0)
+                    wordsOfLine.set(id);
             }
+            lineHasText = true;
+        }
+
+        /**
+         * Method that completes the current line
+         */
+        private void endLine() {
+            if (inFirstLine) { // The candidates are the words of the first line
+                started = true;
+                inFirstLine = false;
+            } else if (lineHasText) {
+                candidates.and(wordsOfLine); // Intersection with the words of the line
+                wordsOfLine.clear();
+                lineHasText = false;
+            }
+        }
 
-        return wordIsDuplicate.get(); // Return result
+        /**
+         * @return True if a line has been added and no word is common to all the lines added so far
+         */
+        private boolean isEmpty() {
+            return started && candidates.isEmpty();
+        }
+
+        /**
+         * @return the distinct common words, or Optional.empty() if only blank lines have been added
+         */
+        private Optional<List<String>> commonWords() {
+
+            if (!started)
+                return Optional.empty();
+
+            List<String> words = new ArrayList<>(candidates.cardinality());
+            for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1))
+                words.add(ids.word(id));
+
+            return Optional.of(words);
+        }
     }
 
+    /**
+     * Interns words to consecutive int ids, using an open-addressing hash table. Words can be looked up either as
+     * Strings or as a range of a char[], which does not require creating a String.
+     */
+    private static class WordIds {
+        private String[] words = new String[16]; // the word of each id
+        private int[] hashes = new int[16]; // the hash code of each word
+        private int[] table = new int[32]; // the slots of the hash table: id + 1, or 0 if empty
+        private int size = 0; // the number of words
+
+        /**
+         * Method that returns the id of a word, adding the word if it is not known yet
+         * @param word the word
+         * @return the id of the word
+         */
+        private int add(String word) {
+
+            int hash = word.hashCode(); // The same hash code computed by find() on a char[]
+            int slot = hash & (table.length - 1);
+            for (; table[slot] != 0; slot = (slot + 1) & (table.length - 1)) // Linear probing
+                if (hashes[table[slot] - 1] == hash && words[table[slot] - 1].equals(word))
+                    return table[slot] - 1; // The word is already known
+
+            if (size == words.length) { // If the arrays are full
+                words = Arrays.copyOf(words, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            words[size] = word;
+            hashes[size] = hash;
+            table[slot] = ++size;
+
+            if (size * 2 > table.length) // Keeps the table at most half full
+                rehash();
+
+            return size - 1;
+        }
+
+        /**
+         * Method that returns the id of a word given as a range of a char[]
+         * @param text the characters
+         * @param start the start of the word
+         * @param end the end of the word
+         * @return the id of the word, or -1 if it is not known
+         */
+        private int find(char[] text, int start, int end) {
+
+            int hash = 0; // Same as String.hashCode()
+            for (int i = start; i < end; i++)
+                hash = 31 * hash + text[i];
+
+            for (int slot = hash & (table.length - 1); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) { // Linear probing
+                int id = table[slot] - 1;
+                if (hashes[id] == hash && words[id].length() == end - start && matches(words[id], text, start))
+                    return id;
+            }
+
+            return -1; // The word is not known
+        }
+
+        /**
+         * Method that returns the id of a word
+         * @param word the word
+         * @return the id of the word, or -1 if it is not known
+         */
+        private int find(String word) {
+            int hash = word.hashCode();
+            for (int slot = hash & (table.length - 1); table[slot] != 0; slot = (slot + 1) & (table.length - 1))
+                if (hashes[table[slot] - 1] == hash && words[table[slot] - 1].equals(word))
+                    return table[slot] - 1;
+            return -1;
+        }
+
+        /**
+         * @param id the id of a word
+         * @return the word
+         */
+        private String word(int id) {
+            return words[id];
+        }
+
+        /**
+         * Method that doubles the size of the hash table
+         */
+        private void rehash() {
+            table = new int[table.length * 2];
+            for (int id = 0; id < size; id++) {
+                int slot = hashes[id] & (table.length - 1);
+                while (table[slot] != 0)
+                    slot = (slot + 1) & (table.length - 1);
+                table[slot] = id + 1;
+            }
+        }
+
+        /**
+         * Method that compares a word with a range of a char[] of the same length
+         * @param word the word
+         * @param text the characters
+         * @param start the start of the range
+         * @return True or False
+         */
+        private static boolean matches(String word, char[] text, int start) {
+            for (int i = 0; i < word.length(); i++)
+                if (word.charAt(i) != text[start + i])
+                    return false;
+            return true;
+        }
+    }
 
     /********************************* Used in method longestLine() *************************************************/
 
     /**
-     * Method that is used in longestLine() to find the longest line of the file
+     * Method that is used in longestLine() to find the longest line of the file.
+     * The file is scanned as bytes by a LongestLineScanner, so no String is created for lines made of ASCII characters.
      * @param dir directory of the file
      * @return longest line of the file in the form of a List<Object> where:
      *                 index 0: Integer that indicates the num of char of the longest line
@@ -465,42 +836,215 @@ public class Exam {
      */
     private static List<Object> computeLongestLine(Path dir) {
 
-        AtomicReference<Location> locationOfLongestLineOfFile = new AtomicReference<>(); // Atomic reference that indicates the Location of the longest line
-        AtomicInteger maxChars = new AtomicInteger(-1); // AtomicInteger that contains the num of the chars of the longest line, initially set to -1 as no line has been found
-
         List<Object> longestLineOfFile = new ArrayList<>(); // longest line of the file in the form of a List<Object> where:
                                                //       -> index 0: Integer that indicates the num of char of the longest line
                                                //       -> index 1: Location that indicates the location of the longest line
+        CachedSummary cached = SummaryCache.lookup(dir, () -> false); // The partial results of the file kept by the summary cache, null if it is disabled
+        if (cached != null) {
+            longestLineOfFile.add(cached.longestLineChars);
+            longestLineOfFile.add(cached.longestLineChars < 0 ? null : new Location(dir, cached.longestLine));
+            return longestLineOfFile;
+        }
+
+        LongestLineScanner scanner = new LongestLineScanner(); // Longest line of the file, initially none
         try {
-            AtomicInteger counterOfLines = new AtomicInteger(0); // Counts the current line
-
-            Files.lines(dir) // Reads the lines of the text file
-                    //.parallel()
-                    .map(String::toLowerCase) // No case-sensitive
-                    .forEach(line -> { // For each line
-                        counterOfLines.getAndIncrement(); // Count the number of lines that have been checked
-                        if (countChars(line) > maxChars.get()) { // If a new longest line is found
-                            maxChars.set(countChars(line)); // Update the value of the amount of chars of the longest line
-                            locationOfLongestLineOfFile.set(new Location(dir, counterOfLines.get())); // Updates the location of the longest line
+            if (isLargeFile(dir)) // If the file is large, its chunks are scanned in parallel and the line numbers are fixed when merging
+                scanner = processChunks(dir, (channel, from, to) -> {
+                    LongestLineScanner chunkScanner = new LongestLineScanner();
+                    chunkScanner.scan(channel, from, to);
+                    return chunkScanner;
+                }, LongestLineScanner::followedBy);
+            else if (isCompressed(dir)) // If the file is compressed, its lines are decompressed and counted as Strings
+                try (LineSegmentReader lines = LineSegmentReader.open(dir)) {
+                    LongestLineScanner fileScanner = scanner;
+                    lines.countLetters(chars -> { // For each line, with its amount of letters
+                        fileScanner.lines++;
+                        if (chars > fileScanner.longestLineChars) { // If a new longest line is found
+                            fileScanner.longestLineChars = chars;
+                            fileScanner.longestLine = fileScanner.lines;
                         }
                     });
-        } catch (IOException exception) { // If an error occurs
+                }
+            else
+                try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) { // Opens the text file
+                    scanner.scan(channel, 0, channel.size()); // Scans the whole file
+                }
+        } catch (IOException | UncheckedIOException exception) { // If an error occurs, e.g. the file is not valid UTF-8
             exception.printStackTrace(); // Prints the error
+            scanner = new LongestLineScanner(); // The file is ignored, as a file that cannot be read
         }
 
-        longestLineOfFile.add(maxChars.get()); // Inserts the amount of chars of the longest line of the file
-        longestLineOfFile.add(locationOfLongestLineOfFile.get()); // Inserts the location of the longest line of the file
+        longestLineOfFile.add(scanner.longestLineChars); // Inserts the amount of chars of the longest line of the file
+        longestLineOfFile.add(scanner.longestLineChars < 0 ? null : new Location(dir, scanner.longestLine)); // Inserts the location of the longest line of the file
 
         return longestLineOfFile; // Returns the list with the details of the longest line
     }
 
     /**
-     * Method that counts and returns the number of characters of a line
+     * Method that gives the longest line of a copy of a file, see ContentDedup
+     * @param longestLineOfFile the longest line of the file, as returned by computeLongestLine()
+     * @param copy the copy of the file
+     * @return the longest line of the copy, in the same form
+     */
+    private static List<Object> relocateLongestLine(List<Object> longestLineOfFile, Path copy) {
+        Location location = (Location) longestLineOfFile.get(1); // Location of the longest line, null if the file has no lines
+        return Arrays.asList(longestLineOfFile.get(0), location == null ? null : new Location(copy, location.line));
+    }
+
+    /**
+     * Finds the line with the highest number of letters in a range of bytes of a UTF-8 file, counting the letters
+     * directly on the bytes. Files of at least MAP_THRESHOLD bytes are memory-mapped in windows of MAP_WINDOW bytes,
+     * smaller files are read into a buffer that is reused by the thread.
+     * <p>
+     * Lines end with '\n', '\r' or "\r\n", as in Files.lines(). In a line made only of ASCII characters every
+     * character is a grapheme, so the letters are counted byte by byte; a line containing other characters is decoded
+     * and counted by countChars(), so the result is always the same as counting the letters of the String of the line.
+     */
+    private static class LongestLineScanner {
+        private static final int MAP_THRESHOLD = 1 << 20; // windows at least this large are memory-mapped, smaller ones are read into the buffer of the thread
+        private static final int MAP_WINDOW = 1 << 26; // the size of each mapped window
+        private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAP_THRESHOLD)); // the buffer of each thread for small windows
+
+        private int lines = 0; // the number of lines found so far
+        private int longestLineChars = -1; // the number of letters of the longest line, -1 if no line has been found
+        private int longestLine = 0; // the number of the longest line, counted from the start of the range
+
+        private int letters = 0; // the number of letters of the current line
+        private boolean ascii = true; // whether the current line contains only ASCII characters
+        private long lineStart; // the position in the file of the first byte of the current line
+        private boolean afterCarriageReturn = false; // whether the previous byte was a '\r', which may be followed by a '\n'
+
+        /**
+         * Method that scans a range of a file. The range must start at the beginning of a line.
+         * @param channel the file
+         * @param from the position of the first byte of the range
+         * @param to the position after the last byte of the range
+         * @throws IOException if the file cannot be read or is not valid UTF-8
+         */
+        private void scan(FileChannel channel, long from, long to) throws IOException {
+
+            lineStart = from;
+            long position = from; // Position in the file of the first byte of the current window
+            while (position < to) { // While there are still bytes to scan
+                int length = (int) Math.min(to - position, MAP_WINDOW); // Size of the window
+                ByteBuffer window;
+                if (length >= MAP_THRESHOLD) { // If the window is large, map it: a small chunk or the end of a range is never mapped, so the mappings stay few
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                } else { // Otherwise, read it into the buffer of the thread
+                    window = BUFFERS.get().clear().limit(length);
+                    while (window.hasRemaining() && channel.read(window, position + window.position()) >= 0);
+                    length = window.flip().limit(); // The file may have been truncated in the meantime
+                    if (length == 0)
+                        break;
+                }
+                scanWindow(channel, window, position, length);
+                position += length; // Proceeds to the next window
+            }
+
+            if (lineStart < to) // If the last line does not end with a line terminator
+                endLine(channel, to);
+        }
+
+        /**
+         * Method that merges the longest line of the next chunk of the file into this one. The line numbers of the
+         * next chunk are shifted by the lines of this chunk; on ties, the line of this chunk comes first in the file.
+         * @param next the scanner of the chunk that follows this one
+         * @return this scanner, which now covers both chunks
+         */
+        private LongestLineScanner followedBy(LongestLineScanner next) {
+
+            if (next.longestLineChars > longestLineChars) { // If the next chunk has a longer line
+                longestLineChars = next.longestLineChars;
+                longestLine = lines + next.longestLine; // Its number, counted from the start of this chunk
+            }
+            lines += next.lines;
+
+            return this;
+        }
+
+        /**
+         * Method that scans the bytes of a window
+         * @param channel the file, used to read again the lines that are not ASCII
+         * @param window the bytes of the window
+         * @param position the position of the window in the file
+         * @param length the number of bytes of the window
+         * @throws IOException if the file cannot be read or is not valid UTF-8
+         */
+        private void scanWindow(FileChannel channel, ByteBuffer window, long position, int length) throws IOException {
+            for (int i = 0; i < length; i++) { // For each byte
+                while (i + 8 <= length) { // 8 bytes at a time, as long as they are ASCII and not line terminators
+                    long bytes = window.getLong(i);
+                    if (AsciiKernels.hasLineBreakOrNonAscii(bytes))
+                        break;
+                    letters += AsciiKernels.countLetters(bytes);
+                    afterCarriageReturn = false;
+                    i += 8;
+                }
+                if (i == length) // If the window ends with 8 ASCII bytes
+                    break;
+
+                byte b = window.get(i);
+                if (b == '\n') {
+                    if (!afterCarriageReturn) // A '\n' after a '\r' is part of the same line terminator
+                        endLine(channel, position + i);
+                    afterCarriageReturn = false;
+                    lineStart = position + i + 1; // The next line starts after the terminator
+                } else if (b == '\r') {
+                    endLine(channel, position + i);
+                    afterCarriageReturn = true;
+                    lineStart = position + i + 1;
+                } else {
+                    afterCarriageReturn = false;
+                    if (b < 0) // The byte is part of a character that is not ASCII
+                        ascii = false;
+                    else if ((b | 0x20) >= 'a' && (b | 0x20) <= 'z') // If it is an ASCII letter, in uppercase or lowercase
+                        letters++;
+                }
+            }
+        }
+
+        /**
+         * Method that completes the current line
+         * @param channel the file, used to read the line again if it is not ASCII
+         * @param lineEnd the position in the file of the line terminator
+         * @throws IOException if the file cannot be read or the line is not valid UTF-8
+         */
+        private void endLine(FileChannel channel, long lineEnd) throws IOException {
+
+            lines++; // Count the number of lines that have been checked
+            QueryStats.countLine();
+            int chars = ascii ? letters : countCharsOfRange(channel, lineStart, lineEnd); // Amount of letters of the line
+            if (chars > longestLineChars) { // If a new longest line is found
+                longestLineChars = chars; // Update the value of the amount of chars of the longest line
+                longestLine = lines; // Updates the number of the longest line
+            }
+
+            letters = 0; // The next line starts
+            ascii = true;
+        }
+    }
+
+    /**
+     * Method that counts and returns the number of characters of a line.
+     * The letters of a line made only of ASCII characters are counted by AsciiKernels, 4 characters at a time,
+     * the other lines by countCharsWithBreakIterator().
      *
      * @param line the line of which we want to find out how many chars contains
      * @return the num of chars of the line
      */
     private static int countChars(String line) {
+        int letters = AsciiKernels.countLetters(line); // In ASCII every character is a grapheme
+        return letters >= 0 ? letters : countCharsWithBreakIterator(line);
+    }
+
+    /**
+     * Method that counts the letters of a line, one grapheme at a time.
+     * This is the original implementation of countChars(), used for the lines that are not ASCII.
+     *
+     * @param line the line of which we want to find out how many chars contains
+     * @return the num of chars of the line
+     */
+    private static int countCharsWithBreakIterator(String line) {
 
         int countChars = 0; // Number of chars of the line
 
@@ -539,35 +1083,225 @@ public class Exam {
         return location1; // Otherwise, return the first
     }
 
+    /********************************** Used in method longestLines() ***********************************************/
+
+    /**
+     * Returns the k lines with the highest number of letters among all the lines present in the text files contained
+     * in a directory, from the longest one. Lines with the same number of letters are ordered as in longestLine():
+     * the one whose filename precedes the other lexicographically comes first, then the one whose path precedes the
+     * other, then the one that comes first in the file, so the result is always the same.
+     * <p>
+     * Each task keeps the k longest lines of its file in a bounded heap, and adds them itself to a TopLines shared
+     * by all the tasks, so the results are merged concurrently instead of by the thread of the query.
+     *
+     * @param dir the directory to search
+     * @param k   the number of lines
+     * @return the k longest lines, or fewer if the files have fewer lines
+     */
+    private static List<LineLength> longestLines(Path dir, int k) {
+        QueryStats stats = QueryStats.start("longestLines", dir); // Statistics of the query
+
+        TopLines topLines = new TopLines(k); // The longest lines found so far, shared by all the tasks
+
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        FileTasks<Void> tasks = submitTextFiles(dir, () -> false, FileScheduler.BY_SIZE, stats, executor, filePath -> () -> { // Walks through the directory in parallel and schedules the files, see FileScheduler
+            computeLongestLines(filePath, topLines).forEach(topLines::add); // Merges the longest lines of the file
+            return null;
+        }, null); // The tasks merge their own lines, so every copy is scanned
+
+        try {
+            while (true) { // Waits for each task, the tasks merge their own results
+                try {
+                    if (tasks.take() == null) // If all the tasks have completed
+                        break;
+                } catch (ExecutionException exception) { // If the task failed, the other files are still searched
+                    exception.printStackTrace(); // Prints the error
+                }
+            }
+        } catch (InterruptedException | IOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+        tasks.close(); // Stops the walk if the query failed
+        stats.startPhase("shutdown"); // All the results have been collected
+        try { // Tries to shut down the executor
+            executor.shutdown(); // Shutdowns the executor
+            executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate
+        } catch (InterruptedException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+        stats.finish(); // Reports the statistics of the query
+
+        return topLines.lines(); // Returns the longest lines, from the longest one
+    }
+
+    /**
+     * Method used in longestLines() that finds the longest lines of a file with a bounded heap, whose head is the
+     * shortest line kept so far. The lines that cannot enter the lines shared by all the tasks are skipped at once.
+     * @param dir directory of the file
+     * @param topLines the longest lines found so far by all the tasks
+     * @return the longest lines of the file, at most topLines.k, in no particular order
+     */
+    private static List<LineLength> computeLongestLines(Path dir, TopLines topLines) {
+
+        PriorityQueue<LineLength> heap = new PriorityQueue<>(Math.max(1, Math.min(topLines.k, 1024)), LineLength.ORDER.reversed()); // The longest lines of the file, the shortest one first
+        try (LineSegmentReader lines = LineSegmentReader.open(dir)) { // Reads the lines of the text file
+            int[] number = {0}; // The number of the current line
+            lines.countLetters(chars -> { // For each line, with its amount of letters
+                number[0]++;
+                if (heap.size() == topLines.k && chars <= heap.peek().chars || !topLines.mayAccept(chars)) // If the line is not long enough
+                    return;
+                heap.add(new LineLength(chars, dir, number[0]));
+                if (heap.size() > topLines.k) // Keeps only the k longest lines
+                    heap.poll();
+            });
+        } catch (IOException | UncheckedIOException exception) { // If an error occurs, e.g. the file is not valid UTF-8
+            exception.printStackTrace(); // Prints the error
+        }
+
+        return new ArrayList<>(heap); // Returns the longest lines of the file
+    }
+
+    /**
+     * A line with its number of letters, a result of longestLines().
+     */
+    private static class LineLength {
+        private static final Comparator<LineLength> ORDER = Comparator.<LineLength>comparingInt(line -> -line.chars)
+                .thenComparing(line -> line.filepath.getFileName().toString())
+                .thenComparing(line -> line.filepath.toString())
+                .thenComparingInt(line -> line.line); // from the longest line, ties as in longestLine()
+
+        private final int chars; // the number of letters of the line
+        private final Path filepath; // the file of the line
+        private final int line; // the number of the line
+
+        private LineLength(int chars, Path filepath, int line) {
+            this.chars = chars;
+            this.filepath = filepath;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The k longest lines found so far, shared by all the tasks of longestLines() without locks. The lines are kept
+     * in a ConcurrentSkipListSet in the order of LineLength.ORDER, and size counts the lines that have been added and
+     * not removed yet: every add that takes size above k removes the shortest line. A line is removed only when at
+     * least k longer lines have been added, so when all the tasks have completed the set holds exactly the k longest lines.
+     */
+    private static class TopLines {
+        private final int k; // the number of lines to keep
+        private final ConcurrentSkipListSet<LineLength> lines = new ConcurrentSkipListSet<>(LineLength.ORDER); // the longest lines, from the longest one
+        private final AtomicInteger size = new AtomicInteger(0); // the number of lines added and not removed yet
+
+        private TopLines(int k) {
+            this.k = k;
+        }
+
+        /**
+         * Method that adds a line, if it is one of the k longest lines found so far
+         * @param line the line
+         */
+        private void add(LineLength line) {
+            if (k <= 0)
+                return;
+            if (size.get() >= k) { // If the set is full, the line must be longer than the shortest one
+                LineLength shortest = lines.isEmpty() ? null : lines.last();
+                if (shortest != null && LineLength.ORDER.compare(line, shortest) > 0)
+                    return;
+            }
+            lines.add(line);
+            if (size.incrementAndGet() > k) { // Too many lines: removes the shortest one
+                lines.pollLast();
+                size.decrementAndGet();
+            }
+        }
+
+        /**
+         * Method used to skip the lines that are too short before creating their LineLength
+         * @param chars the number of letters of a line
+         * @return False if the line cannot be one of the k longest lines
+         */
+        private boolean mayAccept(int chars) {
+            if (k <= 0)
+                return false;
+            if (size.get() < k)
+                return true;
+            LineLength shortest = lines.isEmpty() ? null : lines.last();
+            return shortest == null || chars >= shortest.chars; // Equal lines may still win the tie
+        }
+
+        /**
+         * @return the lines, from the longest one
+         */
+        private List<LineLength> lines() {
+            return new ArrayList<>(lines);
+        }
+    }
+
     /********************************** Used in method wordWithVowels() **********************************************/
 
     /**
-     * Method used in wordWithVowels() that finds a word with the requested amount of vowels from the current file
+     * Method used in wordWithVowels() that finds a word with the requested amount of vowels from the current file.
+     * The file is read only while no word has been found by any task: the task that finds a word sets the stop signal.
      * @param dir directory of the file
      * @param vowels num of requested vowels
-     * @return word with the requested amount of vowels or if there isn't a word, the Option.empty() is returned instead
+     * @param found stop signal shared by all the tasks
+     * @return word with the requested amount of vowels or if there isn't a word, an empty word is returned instead
      */
-    private static Optional<LocatedWord> computeWordWithVowels(Path dir, int vowels) {
+    private static Optional<LocatedWord> computeWordWithVowels(Path dir, int vowels, AtomicBoolean found) {
 
         Optional<LocatedWord> wordWithVowelsOfFile = Optional.empty(); // Indicates the word with the requested amount of vowels
+
+        CachedSummary cached = SummaryCache.lookup(dir, found::get); // The partial results of the file kept by the summary cache, null if it is disabled or a word has been found first
+        if (cached != null) {
+            String wordFound = cached.wordsWithVowels.get(vowels); // The first word of the file with the requested amount of vowels
+            if (wordFound != null)
+                found.set(true); // Stops the other tasks, as when the file is scanned
+            return Optional.of(new LocatedWord(wordFound != null ? wordFound : "", dir));
+        }
         try {
-            Optional<String> wordFound = Files.lines(dir) // Reads the lines of the text file
-                    //.parallel()
-                    .flatMap(line -> extractWords(line).stream()) // Transforms Stream<String> to Stream<String> where it contains all the words for each line
-                    .filter(w -> countVowels(w) == vowels) // Filters the stream so that it only includes the words that have the requested amount of vowels
-                    .findFirst(); // Returns the first that has been found
-
-            if(wordFound.isPresent())
-                wordWithVowelsOfFile = wordFound.map(s -> new LocatedWord(s, dir));
+            String wordFound; // The word found in the file, null if there is none
+            if (isLargeFile(dir)) // If the file is large, its chunks are searched in parallel and the first chunk with a word wins
+                wordFound = processChunks(dir, (channel, from, to) -> {
+                    if (found.get())
+                        return null;
+                    try (Stream<String> lines = LineSegmentReader.open(channel, from, to).segments()) { // Reads the lines of the chunk
+                        return firstWordWithVowels(lines, vowels, found);
+                    }
+                }, (word1, word2) -> word1 != null ? word1 : word2);
             else
-                wordWithVowelsOfFile = Optional.of(new LocatedWord("", dir));
-        } catch (IOException exception) { // If an error occurs
+                try (Stream<String> lines = LineSegmentReader.open(dir).segments()) { // Reads the lines of the text file, a long line in several segments
+                    wordFound = firstWordWithVowels(lines, vowels, found);
+                }
+
+            wordWithVowelsOfFile = Optional.of(new LocatedWord(wordFound != null ? wordFound : "", dir)); // An empty word if none has been found
+        } catch (IOException | UncheckedIOException exception) { // If an error occurs
             exception.printStackTrace(); // Print the error
         }
 
         return wordWithVowelsOfFile; // Returns word with the requested amount of vowels
     }
 
+    /**
+     * Method that finds the first word with the requested amount of vowels in a sequence of lines
+     * @param lines the lines of a file, or of a chunk of a file
+     * @param vowels num of requested vowels
+     * @param found stop signal shared by all the tasks, set when the word is found
+     * @return the word, or null if there is none or another task has found one first
+     */
+    private static String firstWordWithVowels(Stream<String> lines, int vowels, AtomicBoolean found) {
+
+        Optional<String> wordFound = lines
+                .takeWhile(line -> !found.get()) // Stops reading as soon as any task has found a word
+                .map(line -> WordTokenizer.of(line).firstWordWithVowels(vowels)) // Only the word that is found becomes a String
+                .filter(Objects::nonNull) // Filters out the lines without such a word
+                .findFirst(); // Returns the first that has been found
+
+        if (wordFound.isPresent())
+            found.set(true); // Tells the other tasks to stop
+
+        return wordFound.orElse(null);
+    }
+
     /**
      * Method that returns true if the character c is a vowel and false is it is not
      * @param c character
@@ -599,35 +1333,3908 @@ public class Exam {
 
     /********************************** Used in method wordsEndingWith() ********************************************/
 
-    private static List<LocatedWord> computeWordsEndingWith(Path dir, String suffix, int limit) {
-
-        List<LocatedWord> wordsEndingWithOfFile = new ArrayList<>(); // A list with all the words that end with the requested suffix, initially empty
+    /**
+     * Method used in wordsEndingWith() that finds the words of the current file ending with the requested suffix.
+     * A word is added only after reserving one of the remaining places of the shared limit, so all the tasks together
+     * never find more words than the limit; the task that takes the last place sets the stop signal.
+     * @param dir directory of the file
+     * @param suffix the suffix to be searched for
+     * @param remaining number of words that can still be found by all the tasks
+     * @param found stop signal shared by all the tasks
+     * @return the words of the file that end with the suffix
+     */
+    private static LocatedWordTable computeWordsEndingWith(Path dir, String suffix, AtomicInteger remaining, AtomicBoolean found) {
+
+        LocatedWordTable wordsEndingWithOfFile = new LocatedWordTable(); // All the words that end with the requested suffix, initially empty, each distinct word stored once
 
         try {
-            Stream<LocatedWord> wordsWithSuffix = Files.lines(dir) // Reads the lines of the text file
-                    //.parallel()
-                    .flatMap(line -> extractWords(line).stream()) // Transforms Stream<String> to Stream<String> where it contains all the words for each line
-                    .filter(w -> w.endsWith(suffix)) // Filter so that it contains only the words that end with the requested suffix
-                    .map(w -> new LocatedWord(w, dir)) // Transforms Stream<String> to Stream<LocatedWord> with all the words that end with the requested suffix in this form
-                    .limit(limit); // If more words than the limit appear, remove them
-
-            wordsEndingWithOfFile.addAll(wordsWithSuffix.collect(Collectors.toList())); // Add all the words to the lsit
-        } catch (IOException exception) { // If an error occurs
+            List<String> words; // The words of the file that end with the suffix
+            if (isLargeFile(dir)) // If the file is large, its chunks are searched in parallel, sharing the same limit
+                words = processChunks(dir, (channel, from, to) -> {
+                    if (found.get())
+                        return new ArrayList<>();
+                    try (Stream<String> lines = LineSegmentReader.open(channel, from, to).segments()) { // Reads the lines of the chunk
+                        return wordsEndingWith(lines, suffix, remaining, found);
+                    }
+                }, (words1, words2) -> {
+                    words1.addAll(words2);
+                    return words1;
+                });
+            else
+                try (Stream<String> lines = LineSegmentReader.open(dir).segments()) { // Reads the lines of the text file, a long line in several segments
+                    words = wordsEndingWith(lines, suffix, remaining, found);
+                }
+
+            words.forEach(w -> wordsEndingWithOfFile.add(w, dir)); // Add all the words to the table
+        } catch (IOException | UncheckedIOException exception) { // If an error occurs
             exception.printStackTrace(); // Print the error
         }
 
         return wordsEndingWithOfFile; // Return all the words that end with the requested suffix
     }
 
-    /********************************** Used in a lot of methods ****************************************************/
+    /**
+     * Method that finds the words ending with the requested suffix in a sequence of lines, within the shared limit
+     * @param lines the lines of a file, or of a chunk of a file
+     * @param suffix the suffix to be searched for
+     * @param remaining number of words that can still be found by all the tasks
+     * @param found stop signal shared by all the tasks
+     * @return the words that end with the suffix
+     */
+    private static List<String> wordsEndingWith(Stream<String> lines, String suffix, AtomicInteger remaining, AtomicBoolean found) {
+
+        List<String> words = new ArrayList<>(); // The words found so far
+
+        lines.takeWhile(line -> !found.get()) // Stops reading as soon as the limit has been reached
+                .forEach(line -> { // For each line
+                    WordTokenizer tokenizer = WordTokenizer.of(line); // Words of the line, as offsets
+                    for (int i = 0; i < tokenizer.count(); i++) // For each word
+                        if (tokenizer.endsWith(i, suffix)) { // If the word ends with the requested suffix
+                            if (!reservePlace(remaining, found)) // Stops when no place is left
+                                return;
+                            words.add(tokenizer.word(i)); // Only the words that are found become Strings
+                        }
+                });
+
+        return words;
+    }
+
+    /********************************** Used in the streaming results ***********************************************/
+
+    /**
+     * Method that turns a streaming query into a Flow.Publisher. When a subscriber subscribes, the query is run by a
+     * new daemon thread, which submits the words to a SubmissionPublisher: it blocks while the buffer of the subscriber
+     * is full, so a slow subscriber slows down the collection of the results instead of making them pile up in memory.
+     * The stop signal of the query is set once the subscriber has cancelled, so the query stops at its next file; the
+     * words that arrive in the meantime are dropped.
+     * <p>
+     * For example: publish((sink, stop) -> streamWordsEndingWith(dir, "ing", 100, sink, stop))
+     *
+     * @param query the query, which gives its words to the sink it receives and stops when the stop signal is set
+     * @return a publisher that runs the query once for each subscriber
+     */
+    private static Flow.Publisher<LocatedWord> publish(BiConsumer<Consumer<LocatedWord>, BooleanSupplier> query) {
+        return subscriber -> {
+            SubmissionPublisher<LocatedWord> publisher = new SubmissionPublisher<>(); // Delivers the words asynchronously, with backpressure
+            publisher.subscribe(subscriber);
+            Thread thread = new Thread(() -> {
+                try {
+                    query.accept(publisher::submit, () -> !publisher.hasSubscribers()); // Blocks while the subscriber is too slow, stops once it has cancelled
+                    publisher.close(); // Signals onComplete
+                } catch (RuntimeException exception) { // If the query fails
+                    publisher.closeExceptionally(exception); // Signals onError
+                }
+            }, "exam-publisher");
+            thread.setDaemon(true); // A query that nobody waits for never keeps the JVM alive
+            thread.start();
+        };
+    }
+
+    /**
+     * Method that prints the words of a publisher as they arrive, requesting them in small batches
+     * @param publisher the publisher of the words
+     */
+    private static void printPublished(Flow.Publisher<LocatedWord> publisher) {
+
+        CountDownLatch done = new CountDownLatch(1); // Counted down when the publisher has completed
+        publisher.subscribe(new Flow.Subscriber<LocatedWord>() {
+            private static final int BATCH = 64; // number of words requested at a time
+            private Flow.Subscription subscription; // the subscription to the publisher
+            private int received = 0; // words received from the current batch
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(BATCH);
+            }
+
+            @Override
+            public void onNext(LocatedWord locatedWord) {
+                System.out.println(locatedWord.word + ":" + locatedWord.filepath);
+                if (++received == BATCH) { // Requests the next batch
+                    received = 0;
+                    subscription.request(BATCH);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace(); // Prints the error
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.flush();
+                done.countDown();
+            }
+        });
+
+        try {
+            done.await(); // Waits for all the words
+        } catch (InterruptedException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+    }
+
+    /********************************** Used in method runQueries() ***********************************************/
+
+    /**
+     * Answers several queries (allLines, longestLine, vowels and suffix) from a single traversal of the given directory.
+     * Every text file is read once and every line is tokenized once, no matter how many queries are asked.
+     * <p>
+     * The results follow the same rules as the single-query methods findWordsCommonToAllLines(), longestLine(),
+     * wordWithVowels() and wordsEndingWith(). Like them, each vowels and suffix query stops as soon as it has its
+     * result, see QueryProgress, and all the suffixes are matched at once by a SuffixTrie.
+     *
+     * <p>
+     * When the JVM is started with -Dexam.index=<file>, the queries are answered from the word index stored in that
+     * file instead, see queryWordIndex().
+     *
+     * @param dir     the directory to search
+     * @param queries the queries that must be answered
+     * @return the results of all the requested queries
+     */
+    private static QueryResults runQueries(Path dir, QuerySet queries) {
+        if (WORD_INDEX_FILE != null) // If the queries are answered from the word index
+            return queryWordIndex(dir, Paths.get(WORD_INDEX_FILE), queries);
+        return scanQueries(dir, queries); // Otherwise, scans the directory
+    }
+
+    /**
+     * Method used in runQueries() and queryWordIndex() that answers the queries by scanning the directory
+     * @param dir     the directory to search
+     * @param queries the queries that must be answered
+     * @return the results of all the requested queries
+     */
+    private static QueryResults scanQueries(Path dir, QuerySet queries) {
+
+        QueryResults results = new QueryResults(queries); // Results of all the queries, initially empty
+        QueryStats stats = QueryStats.start("multi", dir); // Statistics of the query
+        QueryProgress progress = new QueryProgress(queries); // Shared by the tasks, so that each query stops on its own
+
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        FileTasks<FileSummary> tasks = submitTextFiles(dir, progress::isDone, FileScheduler.BY_SIZE, stats, executor, filePath -> // Walks through the directory only once for all the queries, until they are all done
+                () -> computeFileSummary(filePath, queries, progress), FileSummary::relocated); // The task of each filePath, and the summary of its copies
+
+        try {
+            for (List<FileSummary> summaries; (summaries = tasks.take()) != null; ) // For each task
+                for (FileSummary summary : summaries) // For each file of the task
+                    results.merge(summary); // Merges the partial results of the file with the results found so far
+        } catch (InterruptedException | ExecutionException | IOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+        tasks.close(); // Stops the walk if the query failed
+        stats.startPhase("shutdown"); // All the results have been collected
+        try { // Tries to shut down the executor
+            executor.shutdown(); // Shutdowns the executor
+            executor.awaitTermination(1, TimeUnit.DAYS); // Waits for the executor to terminate
+        } catch (InterruptedException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+
+        stats.finish(); // Reports the statistics of the query
+
+        return results; // Returns the results of all the queries
+    }
+
+    /**
+     * Method used in runQueries() that reads a file once and computes the partial results of every requested query
+     * @param dir directory of the file
+     * @param queries the queries that must be answered
+     * @param progress the queries that are done, shared by all the tasks
+     * @return the partial results of the file
+     */
+    private static FileSummary computeFileSummary(Path dir, QuerySet queries, QueryProgress progress) {
+
+        FileSummary summary = new FileSummary(dir); // Partial results of the file, initially empty
+        if (progress.isDone()) // If the other files have already answered all the queries
+            return summary;
+        boolean needsWords = queries.allLines || !queries.vowels.isEmpty() || !queries.suffixes.isEmpty(); // Whether the lines have to be split into words
+
+        if (!needsWords) { // If only the longest line is requested, the file does not need to be decoded
+            List<Object> longestLineOfFile = computeLongestLine(dir);
+            summary.longestLineChars = (int) longestLineOfFile.get(0);
+            summary.longestLine = summary.longestLineChars < 0 ? 0 : ((Location) longestLineOfFile.get(1)).line;
+            return summary;
+        }
+
+        CommonWordsFinder commonWords = new CommonWordsFinder(); // Intersection of the lines read so far
+        try (LineSegmentReader lines = LineSegmentReader.open(dir)) { // Reads the lines of the text file only once, one segment at a time
+            int letters = 0; // Amount of letters of the current line, added up over its segments
+            for (String segment = lines.next(); segment != null && !progress.isDone(); segment = lines.next()) { // Stops reading as soon as all the queries are done
+                if (queries.longestLine) // If the longest line has been requested
+                    letters += countChars(segment);
+                if (lines.endsLine()) { // At the end of a line
+                    summary.lines++; // Count the number of lines that have been checked
+                    if (letters > summary.longestLineChars) { // If a new longest line is found
+                        summary.longestLineChars = letters; // Update the value of the amount of chars of the longest line
+                        summary.longestLine = summary.lines; // Updates the number of the longest line
+                    }
+                    letters = 0;
+                }
+
+                WordTokenizer tokenizer = WordTokenizer.of(segment); // Words of the segment, extracted only once for all the queries
+
+                if (queries.allLines) // Blank lines are ignored, as in computeWordsCommonToAllLines()
+                    commonWords.addSegment(segment, tokenizer, lines.endsLine()); // Intersection with the words of the line
+
+                for (int i = 0; i < tokenizer.count(); i++) { // For each word of the segment
+                    if (progress.needsVowels()) { // If some words with vowels have not been found yet by any task
+                        int vowels = tokenizer.countVowels(i); // Number of vowels of the word
+                        if (progress.foundVowels(vowels)) // If a word with this amount of vowels has been requested and not found yet
+                            summary.wordsWithVowels.put(vowels, tokenizer.word(i)); // Keep only the first word found
+                    }
+
+                    if (progress.suffixes.size() > 0) { // If some suffixes have been requested
+                        int word = i;
+                        tokenizer.matchSuffixes(i, progress.suffixes, id -> { // For each requested suffix of the word
+                            if (progress.reserve(id)) // If the limit has not been reached
+                                summary.wordsEndingWith.computeIfAbsent(progress.suffixes.suffix(id), s -> new ArrayList<>()).add(tokenizer.word(word)); // Add the word
+                        });
+                    }
+                }
+            }
+        } catch (IOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+        summary.commonWords = commonWords.commonWords().map(LinkedHashSet::new).orElse(null); // The common words, null if all the lines are blank
+
+        return summary; // Returns the partial results of the file
+    }
+
+    /**
+     * The progress of the queries of runQueries() that can stop before all the files have been read: a number of
+     * vowels is done as soon as a word with that number of vowels has been found, a suffix as soon as its limit has
+     * been reached. The tasks of the files skip the queries that are done, and the whole run stops when all of
+     * them are done (unless allLines or longestLine, which need every file, have been requested).
+     */
+    private static class QueryProgress {
+        private final QuerySet queries; // the queries
+        private final SuffixTrie suffixes; // the requested suffixes, matched all at once
+        private final AtomicInteger[] remaining; // for each suffix of the trie, the number of words that can still be found
+        private final Set<Integer> vowelsFound = ConcurrentHashMap.newKeySet(); // the numbers of vowels for which a word has been found
+        private final AtomicInteger pending = new AtomicInteger(0); // the number of queries that are not done
+
+        private QueryProgress(QuerySet queries) {
+            this.queries = queries;
+            this.suffixes = new SuffixTrie(new ArrayList<>(queries.suffixes.keySet()));
+            this.remaining = new AtomicInteger[suffixes.size()];
+            for (int id = 0; id < remaining.length; id++) {
+                remaining[id] = new AtomicInteger(queries.suffixes.get(suffixes.suffix(id)));
+                if (remaining[id].get() > 0)
+                    pending.incrementAndGet();
+            }
+            pending.addAndGet(queries.vowels.size());
+        }
+
+        /**
+         * @return True if every query is done, so no more files have to be read
+         */
+        private boolean isDone() {
+            return !queries.allLines && !queries.longestLine && pending.get() == 0;
+        }
+
+        /**
+         * @return True if some numbers of vowels are still searched
+         */
+        private boolean needsVowels() {
+            return vowelsFound.size() < queries.vowels.size();
+        }
+
+        /**
+         * Method that records a word with the given number of vowels
+         * @param vowels the number of vowels of the word
+         * @return True if no word with the same number of vowels had been found before
+         */
+        private boolean foundVowels(int vowels) {
+            if (!queries.vowels.contains(vowels) || !vowelsFound.add(vowels))
+                return false;
+            pending.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Method that reserves the place of a word ending with a suffix, see reservePlace()
+         * @param id the id of the suffix in the trie
+         * @return True if the word can be added
+         */
+        private boolean reserve(int id) {
+            int left = remaining[id].getAndDecrement();
+            if (left == 1) // This was the last place
+                pending.decrementAndGet();
+            return left > 0;
+        }
+    }
+
+    /**
+     * The suffixes of a batch of suffix queries, stored reversed in a trie so that all of them are matched with a
+     * single backwards pass over each word: this is the Aho-Corasick automaton of the reversed suffixes, without the
+     * failure links, which are not needed as every match is anchored at the end of the word.
+     */
+    private static class SuffixTrie {
+        private final List<String> suffixes; // the suffixes, the id of each one is its index
+        private final Node root = new Node(); // the node of the empty suffix
+
+        /**
+         * A node of the trie: the suffix spelled by the path from the root, read backwards. The children are kept in
+         * two parallel arrays sorted by their character, so that a char is looked up without being boxed.
+         */
+        private static class Node {
+            private char[] keys = new char[0]; // the next character before the suffix, of each child, sorted
+            private Node[] children = new Node[0]; // the child of each character of keys
+            private final List<Integer> ids = new ArrayList<>(1); // the suffixes that end at this node
+
+            /**
+             * @param c a character
+             * @return the child of the character, or null if there is none
+             */
+            private Node child(char c) {
+                int i = Arrays.binarySearch(keys, c);
+                return i >= 0 ? children[i] : null;
+            }
+
+            /**
+             * Method that finds the child of a character, adding it if there is none
+             * @param c a character
+             * @return the child of the character
+             */
+            private Node addChild(char c) {
+                int i = Arrays.binarySearch(keys, c);
+                if (i >= 0) // If the child already exists
+                    return children[i];
+                i = -i - 1; // Where the character is inserted
+                char[] newKeys = new char[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, i);
+                System.arraycopy(children, 0, newChildren, 0, i);
+                System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+                System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+                newKeys[i] = c;
+                newChildren[i] = new Node();
+                keys = newKeys;
+                children = newChildren;
+                return newChildren[i];
+            }
+        }
+
+        private SuffixTrie(List<String> suffixes) {
+            this.suffixes = suffixes;
+            for (int id = 0; id < suffixes.size(); id++) { // Adds each suffix, from its last character to its first
+                String suffix = suffixes.get(id);
+                Node node = root;
+                for (int i = suffix.length() - 1; i >= 0; i--)
+                    node = node.addChild(suffix.charAt(i));
+                node.ids.add(id);
+            }
+        }
+
+        /**
+         * @return the number of suffixes
+         */
+        private int size() {
+            return suffixes.size();
+        }
+
+        /**
+         * @param id the id of a suffix
+         * @return the suffix
+         */
+        private String suffix(int id) {
+            return suffixes.get(id);
+        }
+
+        /**
+         * Method that finds all the suffixes of a word
+         * @param word the characters of the word are word[start..end)
+         * @param start the start of the word
+         * @param end the end of the word
+         * @param onMatch receives the id of each suffix of the word
+         */
+        private void match(char[] word, int start, int end, IntConsumer onMatch) {
+            Node node = root;
+            node.ids.forEach(onMatch::accept);
+            for (int i = end - 1; i >= start && node.keys.length > 0; i--) { // Backwards, from the last character
+                node = node.child(word[i]);
+                if (node == null) // No longer suffix can match
+                    return;
+                node.ids.forEach(onMatch::accept);
+            }
+        }
+    }
+
+    /**
+     * The queries answered by runQueries(): any combination of allLines, longestLine,
+     * a set of vowel counts and a set of suffixes (each with its own limit).
+     */
+    private static class QuerySet {
+        private final boolean allLines; // whether the words common to all lines are requested
+        private final boolean longestLine; // whether the longest line is requested
+        private final Set<Integer> vowels; // the numbers of vowels that are requested
+        private final Map<String, Integer> suffixes; // the requested suffixes, with the size limit of each one
+
+        private QuerySet(boolean allLines, boolean longestLine, Set<Integer> vowels, Map<String, Integer> suffixes) {
+            this.allLines = allLines;
+            this.longestLine = longestLine;
+            this.vowels = vowels;
+            this.suffixes = suffixes;
+        }
+    }
+
+    /**
+     * The partial results of all the queries of a QuerySet for a single file.
+     */
+    private static class FileSummary {
+        private final Path filepath; // the file that has been summarised
+        private int lines = 0; // the number of lines of the file
+        private Set<String> commonWords = null; // the words appearing on every line that is not blank, null if there is no such line
+        private int longestLineChars = -1; // the number of letters of the longest line, -1 if the file has no lines
+        private int longestLine = 0; // the number of the longest line
+        private final Map<Integer, String> wordsWithVowels = new HashMap<>(); // the first word found for each requested number of vowels
+        private final Map<String, List<String>> wordsEndingWith = new HashMap<>(); // the words found for each requested suffix
+
+        private FileSummary(Path filepath) {
+            this.filepath = filepath;
+        }
+
+        /**
+         * Method that copies the summary for another file with the same content
+         * @param copy the other file
+         * @return the summary of the other file
+         */
+        private FileSummary relocated(Path copy) {
+            FileSummary summary = new FileSummary(copy);
+            summary.lines = lines;
+            summary.commonWords = commonWords;
+            summary.longestLineChars = longestLineChars;
+            summary.longestLine = longestLine;
+            summary.wordsWithVowels.putAll(wordsWithVowels);
+            summary.wordsEndingWith.putAll(wordsEndingWith);
+            return summary;
+        }
+    }
+
+    /**
+     * A list of LocatedWords stored in columns: each distinct word is stored once in a WordIds, each distinct path
+     * once in a table of paths, and each element is only the id of its word and the id of its path, in two int
+     * arrays. get() returns a new LocatedWord, a view of the element, so millions of results that repeat the same
+     * words and files take two ints each, and the results of a file are handed to the thread of the query as a few
+     * arrays instead of one object per word.
+     */
+    private static class LocatedWordTable extends AbstractList<LocatedWord> implements RandomAccess {
+        private final WordIds words = new WordIds(); // the distinct words
+        private final List<Path> paths = new ArrayList<>(); // the distinct paths
+        private final Map<Path, Integer> pathIds = new HashMap<>(); // the id of each path
+        private int[] wordIds = new int[8]; // the id of the word of each element
+        private int[] filepathIds = new int[8]; // the id of the path of each element
+        private int size = 0; // the number of elements
+
+        @Override
+        public LocatedWord get(int index) {
+            Objects.checkIndex(index, size);
+            return new LocatedWord(words.word(wordIds[index]), paths.get(filepathIds[index]));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean add(LocatedWord locatedWord) {
+            add(locatedWord.word, locatedWord.filepath);
+            return true;
+        }
+
+        /**
+         * Method that adds an element, interning its word and its path
+         * @param word the word
+         * @param filepath the file where the word has been found
+         */
+        private void add(String word, Path filepath) {
+            append(words.add(word), pathId(filepath));
+        }
+
+        /**
+         * Method that returns the id of a path, adding the path if it is not known yet
+         * @param filepath the path
+         * @return the id of the path
+         */
+        private int pathId(Path filepath) {
+            Integer id = pathIds.get(filepath);
+            if (id == null) { // If the path is new
+                id = paths.size();
+                paths.add(filepath);
+                pathIds.put(filepath, id);
+            }
+            return id;
+        }
+
+        /**
+         * Method that adds the first elements of another table, translating the ids of its words and paths
+         * @param other the other table
+         * @param limit the maximum number of elements that are added
+         */
+        private void append(LocatedWordTable other, int limit) {
+
+            int[] wordMap = new int[other.words.size]; // The id in this table of each word of the other one, plus one
+            int[] pathMap = new int[other.paths.size()]; // The id in this table of each path of the other one, plus one
+            for (int i = 0; i < Math.min(other.size, limit); i++) {
+                int word = other.wordIds[i];
+                int path = other.filepathIds[i];
+                if (wordMap[word] == 0) // Each word and path of the other table is interned once
+                    wordMap[word] = words.add(other.words.word(word)) + 1;
+                if (pathMap[path] == 0)
+                    pathMap[path] = pathId(other.paths.get(path)) + 1;
+                append(wordMap[word] - 1, pathMap[path] - 1);
+            }
+        }
+
+        /**
+         * Method that copies the table, with every word located in another file
+         * @param filepath the other file
+         * @return the copy
+         */
+        private LocatedWordTable relocated(Path filepath) {
+            LocatedWordTable copy = new LocatedWordTable();
+            int pathId = copy.pathId(filepath);
+            for (int i = 0; i < size; i++)
+                copy.append(copy.words.add(words.word(wordIds[i])), pathId);
+            return copy;
+        }
+
+        /**
+         * Method that removes the last elements
+         * @param newSize the number of elements that are kept
+         */
+        private void truncate(int newSize) {
+            if (newSize < size) {
+                size = newSize;
+                modCount++;
+            }
+        }
+
+        /**
+         * Method that adds an element given by its ids
+         * @param wordId the id of the word
+         * @param pathId the id of the path
+         */
+        private void append(int wordId, int pathId) {
+            if (size == wordIds.length) { // If the columns are full
+                wordIds = Arrays.copyOf(wordIds, size * 2);
+                filepathIds = Arrays.copyOf(filepathIds, size * 2);
+            }
+            wordIds[size] = wordId;
+            filepathIds[size] = pathId;
+            size++;
+            modCount++;
+        }
+    }
+
+    /**
+     * The results of all the queries of a QuerySet, merged from the FileSummary of every file.
+     */
+    private static class QueryResults {
+        private final QuerySet queries; // the queries that are answered
+        private final LocatedWordTable wordsCommonToAllLines = new LocatedWordTable(); // the result of allLines
+        private Location longestLine = null; // the result of longestLine
+        private int longestLineChars = -1; // the number of letters of the longest line found so far
+        private final Map<Integer, Optional<LocatedWord>> wordsWithVowels = new TreeMap<>(); // the result of vowels, for each number of vowels
+        private final Map<String, LocatedWordTable> wordsEndingWith = new LinkedHashMap<>(); // the result of suffix, for each suffix
+
+        private QueryResults(QuerySet queries) {
+            this.queries = queries;
+            queries.vowels.forEach(n -> wordsWithVowels.put(n, Optional.empty())); // No word has been found yet
+            queries.suffixes.keySet().forEach(suffix -> wordsEndingWith.put(suffix, new LocatedWordTable())); // No word has been found yet
+        }
+
+        /**
+         * Merges the partial results of a file with the results found so far, with the same rules of the single-query methods
+         * @param summary partial results of a file
+         */
+        private void merge(FileSummary summary) {
+            if (summary.commonWords != null) // If the file has at least one line that is not blank
+                summary.commonWords.forEach(w -> wordsCommonToAllLines.add(w, summary.filepath)); // Add its common words
+
+            if (queries.longestLine && summary.longestLineChars >= 0) { // If the file has at least one line
+                Location location = new Location(summary.filepath, summary.longestLine); // Location of the longest line of the file
+                if (summary.longestLineChars > longestLineChars) { // If a new longest line is found
+                    longestLineChars = summary.longestLineChars; // Updates the value with the new amount of chars
+                    longestLine = location; // Updates the location the longest line
+                } else if (summary.longestLineChars == longestLineChars) // Otherwise, if the same amount of chars are found in the 2 lines
+                    longestLine = compareStringsLexicographically(longestLine, location); // Keep the one whose filename precedes the other lexicographically
+            }
+
+            summary.wordsWithVowels.forEach((n, w) -> { // For each word with vowels found in the file
+                if (wordsWithVowels.get(n).isEmpty()) // If no word with n vowels has been found yet
+                    wordsWithVowels.put(n, Optional.of(new LocatedWord(w, summary.filepath))); // Keep this one
+            });
+
+            summary.wordsEndingWith.forEach((suffix, words) -> { // For each suffix searched in the file
+                LocatedWordTable found = wordsEndingWith.get(suffix); // Words found so far for the suffix
+                for (String w : words) // For each word found in the file
+                    if (found.size() < queries.suffixes.get(suffix)) // If the limit has not been reached yet
+                        found.add(w, summary.filepath); // Add the word
+            });
+        }
+
+        /**
+         * @return True if no other file can change the results: a word has been found for every number of vowels and
+         * every suffix has reached its limit, and neither allLines nor longestLine, which need every file, is requested
+         */
+        private boolean isDone() {
+            return !queries.allLines && !queries.longestLine
+                    && wordsWithVowels.values().stream().allMatch(Optional::isPresent)
+                    && wordsEndingWith.entrySet().stream().allMatch(e -> e.getValue().size() >= queries.suffixes.get(e.getKey()));
+        }
+    }
+
+    /********************************** Used in the sharded scan *****************************************************/
+
+    private static final int SHARD_FILE = 1; // Message of a worker: the FileSummary of a file follows
+    private static final int SHARD_DONE = 2; // Message of a worker: every file of the shard has been summarised
+    private static final int SHARD_ATTEMPTS = 3; // Workers a shard is sent to before the coordinator scans it itself
+    private static final int SHARDS_PER_WORKER = Math.max(1, Integer.getInteger("exam.shardsPerWorker", 4)); // More shards balance the workers better and lose less work when one fails
+    private static final long SHARD_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("exam.shardTimeout", 300))); // A worker that sends nothing for this long is stopped, and its shard reassigned
+
+    /**
+     * Answers the given queries like runQueries(), but the files are scanned by several local worker JVMs, so that
+     * the scan is not limited by the heap and the garbage collector of a single JVM. The text files are split into
+     * shards of about the same size, see planShards(), and each worker (java Exam$Tools shardWorker) receives shards
+     * on its standard input and sends back the FileSummary of every file on its standard output.
+     * <p>
+     * The coordinator merges the shards with QueryResults.merge(), so the results follow the same rules as
+     * runQueries(): the lexicographic tie-break of longestLine, the first word found for each number of vowels and
+     * the limit of each suffix. A shard is merged only when all of its files have been received, so if a worker
+     * fails its shard is sent again to another worker, without duplicates. After SHARD_ATTEMPTS failures, or if no
+     * worker is left, the remaining shards are scanned in this JVM.
+     *
+     * @param dir       the directory to search
+     * @param workers   the number of worker JVMs
+     * @param queryArgs the queries, in the form allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+     * @return the results of all the requested queries
+     */
+    private static QueryResults runShardedQueries(Path dir, int workers, String[] queryArgs) {
+
+        QuerySet queries = Tools.parseQueries(queryArgs); // Parsed here too, so that a wrong query fails before the workers start
+        QueryResults results = new QueryResults(queries); // Results of all the queries, initially empty
+        QueryStats stats = QueryStats.start("shards", dir); // Statistics of the query
+
+        List<Shard> shards; // The shards, the largest first
+        try {
+            shards = planShards(dir, workers * SHARDS_PER_WORKER);
+        } catch (IOException exception) { // If the directory cannot be visited
+            exception.printStackTrace(); // Prints the error
+            stats.finish();
+            return results;
+        }
+        stats.scheduled(shards.size() + " shards on " + workers + " workers");
+        stats.startPhase("merge"); // The workers start scanning
+
+        BlockingQueue<Shard> pending = new LinkedBlockingQueue<>(shards); // Shards not sent to any worker yet
+        BlockingQueue<ShardOutcome> outcomes = new LinkedBlockingQueue<>(); // Shards scanned, or lost by a failed worker
+        List<ShardWorker> started = new ArrayList<>(); // The workers that have been started
+        for (int id = 0; id < workers && id < shards.size(); id++) { // No worker would be idle
+            try {
+                ShardWorker worker = ShardWorker.start(id, workers, queryArgs);
+                started.add(worker);
+                Thread thread = new Thread(() -> worker.serve(pending, outcomes), "exam-shard-" + id); // Sends the shards to the worker
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException exception) { // If the JVM cannot be started
+                exception.printStackTrace(); // Prints the error
+            }
+        }
+
+        Deque<Shard> local = new ArrayDeque<>(); // Shards that are scanned by the coordinator
+        int alive = started.size(); // Workers that have not failed
+        if (alive == 0)
+            pending.drainTo(local);
+        QueryProgress progress = new QueryProgress(queries); // Progress of the shards scanned by the coordinator
+        int left = shards.size(); // Shards not merged yet
+        try {
+            while (left > 0 && !results.isDone()) { // Until every shard is merged, or no shard can change the results
+                Shard shard = local.poll();
+                if (shard != null) { // Scans the shard in this JVM
+                    for (Path file : shard.files)
+                        results.merge(computeFileSummary(file, queries, progress));
+                    left--;
+                    continue;
+                }
+                ShardOutcome outcome = outcomes.poll(1, TimeUnit.SECONDS); // Waits for a worker
+                if (outcome == null) { // Checks whether a worker hangs: once stopped, it fails like a worker that has exited
+                    started.forEach(ShardWorker::stopIfHung);
+                    continue;
+                }
+                if (outcome.summaries != null) { // If the shard has been scanned
+                    outcome.summaries.forEach(results::merge); // Merges the partial results of its files
+                    left--;
+                    continue;
+                }
+                alive--; // The worker has failed, so the shard is reassigned
+                System.err.println("Shard worker " + outcome.worker + " failed, reassigning shard " + outcome.shard.id + " (" + outcome.shard.files.size() + " files)");
+                if (outcome.shard.attempts < SHARD_ATTEMPTS && alive > 0)
+                    pending.add(outcome.shard); // Taken by the next worker that is free
+                else
+                    local.add(outcome.shard);
+                if (alive == 0) // No worker can take the other shards
+                    pending.drainTo(local);
+            }
+        } catch (InterruptedException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+
+        stats.startPhase("shutdown"); // All the results have been collected
+        for (ShardWorker worker : started) {
+            pending.add(Shard.END); // Each thread takes one and stops
+            worker.close(left > 0); // The shards still running are not needed if the queries are done
+        }
+        stats.finish(); // Reports the statistics of the query
+
+        return results; // Returns the results of all the queries
+    }
+
+    /**
+     * Method that splits the text files of a directory into shards of about the same size: the files are taken from
+     * the largest one, see SizedFile, and each one is added to the smallest shard so far.
+     * @param dir the directory to search
+     * @param count the number of shards, fewer if there are fewer files
+     * @return the shards, the largest first
+     * @throws IOException if the directory cannot be visited
+     */
+    private static List<Shard> planShards(Path dir, int count) throws IOException {
+
+        List<SizedFile> files = new ArrayList<>(); // The text files of the directory
+        listTextFiles(dir).forEach((file, attributes) -> files.add(new SizedFile(file, attributes.size())));
+        files.sort(SizedFile.LARGEST_FIRST);
+
+        PriorityQueue<Shard> smallest = new PriorityQueue<>(Comparator.<Shard>comparingLong(shard -> shard.cost).thenComparingInt(shard -> shard.id));
+        for (int id = 0; id < count && id < files.size(); id++)
+            smallest.add(new Shard(id));
+        for (SizedFile file : files) { // The largest files first, so the last ones even out the shards
+            Shard shard = smallest.poll();
+            shard.files.add(file.path);
+            shard.cost += file.cost;
+            smallest.add(shard);
+        }
+
+        List<Shard> shards = new ArrayList<>(smallest);
+        shards.sort(Comparator.<Shard>comparingLong(shard -> -shard.cost).thenComparingInt(shard -> shard.id)); // The largest shards are sent first
+        return shards; // Returns the shards
+    }
+
+    /**
+     * A part of the text files of a directory, scanned by a single worker of runShardedQueries().
+     */
+    private static class Shard {
+        private static final Shard END = new Shard(-1); // tells the thread of a worker that no shard is left
+        private final int id; // the number of the shard
+        private final List<Path> files = new ArrayList<>(); // the files of the shard
+        private long cost = 0; // the sum of the costs of the files, see SizedFile
+        private int attempts = 0; // the number of workers the shard has been sent to
+
+        private Shard(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The outcome of a shard sent to a worker: the summaries of its files, or null if the worker has failed.
+     */
+    private static class ShardOutcome {
+        private final Shard shard; // the shard
+        private final int worker; // the worker the shard has been sent to
+        private final List<FileSummary> summaries; // the summary of each file, null if the worker has failed
+
+        private ShardOutcome(Shard shard, int worker, List<FileSummary> summaries) {
+            this.shard = shard;
+            this.worker = worker;
+            this.summaries = summaries;
+        }
+    }
+
+    /**
+     * A worker JVM of runShardedQueries(), started with the same class path and the same exam.* properties as this
+     * JVM, except those of the summary cache and its journal: the workers do not use the cache, and several JVMs
+     * must never write the same cache file. The processors are divided among the workers with -Dexam.threads.
+     * A worker that sends nothing about its shard for -Dexam.shardTimeout seconds (300 by default) is stopped.
+     */
+    private static class ShardWorker {
+        private final int id; // the number of the worker
+        private final Process process; // the JVM of the worker
+        private final DataOutputStream requests; // the shards sent to the worker
+        private final DataInputStream replies; // the summaries sent by the worker
+        private volatile boolean busy = false; // whether the worker is scanning a shard
+        private volatile long lastReply = System.nanoTime(); // when the worker last received a shard or sent a message
+
+        private ShardWorker(int id, Process process) {
+            this.id = id;
+            this.process = process;
+            this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.replies = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        /**
+         * Method that starts a worker JVM
+         * @param id the number of the worker
+         * @param workers the number of workers, which share the processors
+         * @param queryArgs the queries answered by the worker
+         * @return the worker
+         * @throws IOException if the JVM cannot be started
+         */
+        private static ShardWorker start(int id, int workers, String[] queryArgs) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString()); // The same JVM that is running now
+            System.getProperties().stringPropertyNames().stream()
+                    .filter(name -> name.startsWith("exam.") && !name.equals("exam.threads"))
+                    .filter(name -> !name.startsWith("exam.cache") && !name.startsWith("exam.journal")).sorted() // The cache belongs to the coordinator
+                    .forEach(name -> command.add("-D" + name + "=" + System.getProperty(name))); // The same settings
+            command.add("-Dexam.threads=" + Math.max(1, QueryExecutor.THREADS / workers));
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Tools.class.getName(), "shardWorker"));
+            command.addAll(Arrays.asList(queryArgs));
+            return new ShardWorker(id, new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+
+        /**
+         * Method that sends shards to the worker until Shard.END is taken or the worker fails
+         * @param pending the shards not sent to any worker yet
+         * @param outcomes where the outcome of each shard is put
+         */
+        private void serve(BlockingQueue<Shard> pending, BlockingQueue<ShardOutcome> outcomes) {
+            try {
+                for (Shard shard; (shard = pending.take()) != Shard.END; ) {
+                    shard.attempts++;
+                    try {
+                        outcomes.add(new ShardOutcome(shard, id, scan(shard)));
+                    } catch (IOException exception) { // If the worker has failed
+                        outcomes.add(new ShardOutcome(shard, id, null)); // The coordinator reassigns the shard
+                        process.destroyForcibly();
+                        return;
+                    }
+                }
+            } catch (InterruptedException exception) { // If an error occurs
+                exception.printStackTrace(); // Prints the error
+            }
+        }
+
+        /**
+         * Method that sends a shard to the worker and reads the summaries of its files
+         * @param shard the shard
+         * @return the summary of each file of the shard
+         * @throws IOException if the worker has failed
+         */
+        private List<FileSummary> scan(Shard shard) throws IOException {
+            requests.writeInt(shard.id);
+            requests.writeInt(shard.files.size());
+            for (Path file : shard.files)
+                writeIndexString(requests, file.toString());
+            lastReply = System.nanoTime();
+            busy = true;
+            requests.flush();
+
+            List<FileSummary> summaries = new ArrayList<>(shard.files.size());
+            for (int message; (message = replies.readInt()) != SHARD_DONE; ) { // Until the end of the shard, EOFException if the worker has exited
+                if (message != SHARD_FILE)
+                    throw new IOException("Unexpected message " + message + " from shard worker " + id);
+                summaries.add(readFileSummary(replies));
+                lastReply = System.nanoTime();
+            }
+            if (replies.readInt() != shard.id || summaries.size() != shard.files.size())
+                throw new IOException("Incomplete shard " + shard.id + " from shard worker " + id);
+            busy = false;
+            return summaries; // Returns the summaries
+        }
+
+        /**
+         * Method that stops the worker if it has sent nothing about its shard for SHARD_TIMEOUT_NANOS: the thread
+         * that reads its replies then fails, and the shard is reassigned
+         */
+        private void stopIfHung() {
+            if (busy && process.isAlive() && System.nanoTime() - lastReply > SHARD_TIMEOUT_NANOS) {
+                System.err.println("Shard worker " + id + " has not answered for " + TimeUnit.NANOSECONDS.toSeconds(SHARD_TIMEOUT_NANOS) + " s, stopping it");
+                process.destroyForcibly();
+            }
+        }
+
+        /**
+         * Method that stops the worker: it exits when it reads the end of its standard input
+         * @param now True if the shard it is scanning is not needed
+         */
+        private void close(boolean now) {
+            try {
+                if (!now) {
+                    requests.writeInt(-1); // No more shards
+                    requests.close();
+                    if (process.waitFor(10, TimeUnit.SECONDS))
+                        return;
+                }
+            } catch (IOException exception) { // If the worker has already exited
+            } catch (InterruptedException exception) { // If an error occurs
+                exception.printStackTrace(); // Prints the error
+            }
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * The worker of runShardedQueries(): it reads shards from the standard input, each one as its number, its number
+     * of files and the path of each file, and writes the summary of every file to the standard output, followed by
+     * SHARD_DONE and the number of the shard. It exits when it reads a negative number or the end of the input.
+     * The vowels and suffix queries that are done are skipped in the next shards too, as in runQueries().
+     * @param queryArgs the queries, in the form allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+     */
+    private static void runShardWorker(String[] queryArgs) {
+
+        QuerySet queries = Tools.parseQueries(queryArgs); // The queries of the coordinator
+        QueryProgress progress = new QueryProgress(queries); // Shared by all the shards of the worker
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream replies = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err); // The standard output only carries the replies
+
+        ExecutorService executor = QueryExecutor.open(); // Runs the files of each shard in parallel
+        try {
+            for (int shard; (shard = requests.readInt()) >= 0; ) { // For each shard
+                int count = requests.readInt(); // Number of files of the shard
+                CompletionService<FileSummary> completion = new ExecutorCompletionService<>(executor);
+                for (int i = 0; i < count; i++) {
+                    Path file = Paths.get(readIndexString(requests));
+                    completion.submit(() -> computeFileSummary(file, queries, progress));
+                }
+                for (int i = 0; i < count; i++) { // Sends each summary as soon as it is ready
+                    replies.writeInt(SHARD_FILE);
+                    writeFileSummary(replies, completion.take().get());
+                }
+                replies.writeInt(SHARD_DONE);
+                replies.writeInt(shard);
+                replies.flush();
+            }
+        } catch (EOFException exception) { // If the coordinator has exited
+        } catch (IOException | InterruptedException | ExecutionException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+        executor.shutdownNow(); // Nothing is left to scan
+    }
+
+    /**
+     * Method that writes the summary of a file for the coordinator of runShardedQueries()
+     * @param out where the summary is written
+     * @param summary the summary
+     * @throws IOException if the summary cannot be written
+     */
+    private static void writeFileSummary(DataOutputStream out, FileSummary summary) throws IOException {
+        writeIndexString(out, summary.filepath.toString());
+        out.writeInt(summary.longestLineChars);
+        out.writeInt(summary.longestLine);
+        out.writeInt(summary.commonWords == null ? -1 : summary.commonWords.size()); // -1 if all the lines are blank
+        if (summary.commonWords != null)
+            for (String word : summary.commonWords)
+                writeIndexString(out, word);
+        out.writeInt(summary.wordsWithVowels.size());
+        for (Map.Entry<Integer, String> entry : summary.wordsWithVowels.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeIndexString(out, entry.getValue());
+        }
+        out.writeInt(summary.wordsEndingWith.size());
+        for (Map.Entry<String, List<String>> entry : summary.wordsEndingWith.entrySet()) {
+            writeIndexString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String word : entry.getValue())
+                writeIndexString(out, word);
+        }
+    }
+
+    /**
+     * Method that reads the summary of a file written by writeFileSummary()
+     * @param in where the summary is read
+     * @return the summary
+     * @throws IOException if the summary cannot be read
+     */
+    private static FileSummary readFileSummary(DataInputStream in) throws IOException {
+        FileSummary summary = new FileSummary(Paths.get(readIndexString(in)));
+        summary.longestLineChars = in.readInt();
+        summary.longestLine = in.readInt();
+        int commonWords = in.readInt();
+        if (commonWords >= 0) {
+            summary.commonWords = new LinkedHashSet<>();
+            for (int i = 0; i < commonWords; i++)
+                summary.commonWords.add(readIndexString(in));
+        }
+        for (int i = in.readInt(); i > 0; i--)
+            summary.wordsWithVowels.put(in.readInt(), readIndexString(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            String suffix = readIndexString(in);
+            List<String> words = new ArrayList<>();
+            for (int j = in.readInt(); j > 0; j--)
+                words.add(readIndexString(in));
+            summary.wordsEndingWith.put(suffix, words);
+        }
+        return summary; // Returns the summary
+    }
+
+    /********************************** Used in the word index ******************************************************/
+
+    private static final int WORD_INDEX_MAGIC = 0x45584958; // Identifies an index file written by writeWordIndex()
+    private static final int WORD_INDEX_VERSION = 1; // Version of the format of the index file
+    private static final String WORD_INDEX_FILE = System.getProperty("exam.index"); // If set, runQueries() and the single-query methods answer from this word index, see queryWordIndex()
+    private static final long WORD_INDEX_WINDOW = Math.max(1 << 12, Long.getLong("exam.indexWindow", 1L << 28)); // Bytes of the index mapped at once, so that an index may be larger than 2 GB
+
+    /**
+     * Answers the given queries using the word index stored in indexFile, which is brought up to date first.
+     * Files whose size and modification time are the same as in the index are not read again: only new and
+     * changed files are scanned. If the index cannot be used, the directory is scanned with scanQueries() instead.
+     * runQueries() answers its queries with this method when the JVM is started with -Dexam.index=<file>.
+     *
+     * @param dir       the directory to search
+     * @param indexFile the file containing the word index of dir
+     * @param queries   the queries that must be answered
+     * @return the results of all the requested queries
+     */
+    private static QueryResults queryWordIndex(Path dir, Path indexFile, QuerySet queries) {
+        QueryResults results = answerFromWordIndex(dir, indexFile, queries); // Null if the index cannot be used
+        return results != null ? results : scanQueries(dir, queries); // Falls back to scanning the directory
+    }
+
+    /**
+     * Method used in queryWordIndex() and in the single-query methods, when the JVM is started with -Dexam.index=<file>,
+     * that answers the given queries from the word index stored in indexFile, which is brought up to date first
+     *
+     * @param dir       the directory to search
+     * @param indexFile the file containing the word index of dir
+     * @param queries   the queries that must be answered
+     * @return the results of all the requested queries, or null if the index cannot be used
+     */
+    private static QueryResults answerFromWordIndex(Path dir, Path indexFile, QuerySet queries) {
+        try {
+            WordIndex index = openWordIndex(dir, indexFile); // Index stored on disk, null if there is none
+            if (index == null || !index.isFresh(listTextFiles(dir))) { // If some files have been added, changed or deleted
+                if (index != null)
+                    index.close();
+                buildWordIndex(dir, indexFile); // Re-index only what has changed
+                index = openWordIndex(dir, indexFile); // Map the updated index
+            }
+            try (WordIndex freshIndex = index) {
+                return freshIndex.answer(queries); // Answers the queries without reading the text files
+            }
+        } catch (IOException | RuntimeException exception) { // If the index cannot be used
+            exception.printStackTrace(); // Prints the error
+        }
+
+        return null; // The caller scans the directory instead
+    }
+
+    /**
+     * Writes the word index of the given directory to indexFile. If indexFile already contains an index, the files
+     * whose size and modification time have not changed are copied from it, and only the other files are scanned.
+     *
+     * @param dir       the directory to index
+     * @param indexFile the file where the index is written
+     * @return the number of text files that had to be scanned
+     * @throws IOException if the directory cannot be visited or the index cannot be written
+     */
+    private static int buildWordIndex(Path dir, Path indexFile) throws IOException {
+
+        Map<Path, BasicFileAttributes> textFiles = listTextFiles(dir); // Text files currently in the directory
+        Map<Path, IndexedFile> previous = new HashMap<>(); // Files stored in the previous version of the index
+        try (WordIndex index = openWordIndex(dir, indexFile)) { // Previous version of the index, null if there is none
+            if (index != null)
+                previous = index.toIndexedFiles(); // Unpack it to reuse the files that have not changed
+        } catch (IOException | RuntimeException exception) { // If the previous index is corrupted
+            previous.clear(); // Index everything from scratch
+        }
+
+        List<IndexedFile> indexedFiles = new ArrayList<>(); // Files of the new version of the index
+        ExecutorService executor = QueryExecutor.open(); // Runs the tasks of the query, see QueryExecutor
+        ExecutorCompletionService<IndexedFile> completionService = new ExecutorCompletionService<>(executor); // Used to manage the tasks of the executor
+        long pendingTasks = 0; // Number of files that have to be scanned
+
+        for (Map.Entry<Path, BasicFileAttributes> textFile : textFiles.entrySet()) { // For each text file
+            IndexedFile old = previous.get(textFile.getKey()); // The file in the previous version of the index
+            if (old != null && old.isUpToDate(textFile.getValue())) { // If it has not changed
+                indexedFiles.add(old); // Reuse it
+            } else {
+                completionService.submit(() -> computeIndexedFile(textFile.getKey(), textFile.getValue())); // Scan it in a new task
+                pendingTasks++;
+            }
+        }
+        int scannedFiles = (int) pendingTasks; // Number of files that are scanned again
+
+        try {
+            while (pendingTasks > 0) { // For each task
+                indexedFiles.add(completionService.take().get()); // Add the scanned file to the index
+                pendingTasks--; // Task is completed
+            }
+        } catch (InterruptedException | ExecutionException exception) { // If an error occurs
+            executor.shutdownNow(); // Stops the other tasks
+            throw new IOException("Could not index " + dir, exception); // The index would be incomplete
+        }
+        try { // Tries to shut down the executor
+            executor.shutdown(); // Shutdowns the executor
+            executor.awaitTermination(1, TimeUnit.DAYS); // Returns at once, all the tasks have completed
+        } catch (InterruptedException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+
+        writeWordIndex(dir, indexFile, indexedFiles); // Stores the new version of the index
+        return scannedFiles; // Returns the number of files that have been scanned
+    }
+
+    /**
+     * Method used in buildWordIndex() that finds the words of a file, how often they occur and whether they
+     * occur on every line, together with the longest line of the file
+     * @param file the file to scan
+     * @param attributes the size and modification time of the file
+     * @return the entry of the file in the index
+     */
+    private static IndexedFile computeIndexedFile(Path file, BasicFileAttributes attributes) {
+
+        IndexedFile indexedFile = new IndexedFile(file, attributes.size(), attributes.lastModifiedTime().toMillis()); // Entry of the file, initially empty
+
+        try (LineSegmentReader lines = LineSegmentReader.open(file)) { // Reads the lines of the text file, one segment at a time
+            int counterOfLines = 0; // Counts the current line
+            int letters = 0; // Amount of letters of the current line, added up over its segments
+            Set<String> wordsOfLine = new HashSet<>(); // Words of the current line, collected over its segments
+            boolean blank = true; // Whether the segments of the current line read so far are blank
+            for (String segment = lines.next(); segment != null; segment = lines.next()) { // For each segment
+                letters += countChars(segment);
+
+                List<String> words = extractWords(segment); // Words of the segment
+                words.forEach(w -> indexedFile.occurrences.merge(w, 1, Integer::sum)); // Count each occurrence of the words
+                if (indexedFile.commonWords == null || !indexedFile.commonWords.isEmpty()) // Once no word is common, the words of the lines are not needed
+                    wordsOfLine.addAll(words);
+                blank &= segment.isBlank();
+
+                if (lines.endsLine()) { // At the end of a line
+                    counterOfLines++;
+                    if (letters > indexedFile.longestLineChars) { // If a new longest line is found
+                        indexedFile.longestLineChars = letters;
+                        indexedFile.longestLine = counterOfLines;
+                    }
+                    if (!blank) { // Blank lines are ignored, as in computeWordsCommonToAllLines()
+                        if (indexedFile.commonWords == null) // If this is the first line that is not blank
+                            indexedFile.commonWords = new HashSet<>(wordsOfLine);
+                        else
+                            indexedFile.commonWords.retainAll(wordsOfLine); // Intersection with the words of the line
+                    }
+                    letters = 0;
+                    wordsOfLine.clear();
+                    blank = true;
+                }
+            }
+        } catch (IOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+
+        return indexedFile; // Returns the entry of the file
+    }
+
+    /**
+     * Method that writes the word index to disk. The index contains a table of the files (path relative to dir, size,
+     * modification time and longest line) followed by the sorted table of the words, where each word is stored with
+     * its number of vowels and the list of the files that contain it (file id, occurrences, whether it is on every line).
+     * The index is written to a temporary file that then replaces indexFile, so that readers never see half an index.
+     *
+     * @param dir          the indexed directory
+     * @param indexFile    the file where the index is written
+     * @param indexedFiles the entries of the files
+     * @throws IOException if the index cannot be written
+     */
+    private static void writeWordIndex(Path dir, Path indexFile, List<IndexedFile> indexedFiles) throws IOException {
+
+        Map<String, List<int[]>> postings = new TreeMap<>(); // For each word, the files containing it as {file id, occurrences, on every line}
+        for (int fileId = 0; fileId < indexedFiles.size(); fileId++) { // For each file
+            IndexedFile indexedFile = indexedFiles.get(fileId);
+            for (Map.Entry<String, Integer> word : indexedFile.occurrences.entrySet()) { // For each word of the file
+                boolean onAllLines = indexedFile.commonWords != null && indexedFile.commonWords.contains(word.getKey());
+                postings.computeIfAbsent(word.getKey(), w -> new ArrayList<>()).add(new int[]{fileId, word.getValue(), onAllLines ? 1 : 0});
+            }
+        }
+
+        Path absoluteIndexFile = indexFile.toAbsolutePath(); // The temporary file is created next to the index
+        Path temporaryFile = Files.createTempFile(absoluteIndexFile.getParent(), absoluteIndexFile.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(WORD_INDEX_MAGIC);
+            out.writeInt(WORD_INDEX_VERSION);
+
+            out.writeInt(indexedFiles.size()); // Table of the files
+            for (IndexedFile indexedFile : indexedFiles) {
+                writeIndexString(out, dir.relativize(indexedFile.filepath).toString());
+                out.writeLong(indexedFile.size);
+                out.writeLong(indexedFile.modified);
+                out.writeInt(indexedFile.longestLineChars);
+                out.writeInt(indexedFile.longestLine);
+            }
+
+            out.writeInt(postings.size()); // Table of the words
+            for (Map.Entry<String, List<int[]>> word : postings.entrySet()) {
+                out.writeByte(Math.min(countVowels(word.getKey()), Byte.MAX_VALUE)); // Stored before the word so that it can be skipped without decoding it
+                writeIndexString(out, word.getKey());
+                out.writeInt(word.getValue().size());
+                for (int[] posting : word.getValue()) {
+                    out.writeInt(posting[0]);
+                    out.writeInt(posting[1]);
+                    out.writeByte(posting[2]);
+                }
+            }
+        } catch (IOException exception) { // If the index cannot be written
+            Files.deleteIfExists(temporaryFile); // Do not leave the temporary file behind
+            throw exception;
+        }
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // Replaces the previous index
+    }
+
+    /**
+     * Method that writes a String to the index as its length followed by its UTF-8 bytes
+     * @param out the index being written
+     * @param string the String to write
+     * @throws IOException if the index cannot be written
+     */
+    private static void writeIndexString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Method that opens the word index of a directory, which is memory-mapped a window at a time
+     * @param dir the indexed directory
+     * @param indexFile the file containing the index
+     * @return the index, which must be closed, or null if indexFile does not exist
+     * @throws IOException if indexFile cannot be read or is not an index
+     */
+    private static WordIndex openWordIndex(Path dir, Path indexFile) throws IOException {
+
+        if (!Files.exists(indexFile)) // If the index has never been built
+            return null;
+
+        FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ); // Stays open to map the next windows
+        try {
+            return new WordIndex(dir, channel);
+        } catch (IOException | RuntimeException exception) { // If it is not an index
+            channel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Method that finds the text files of a directory together with their size and modification time
+     * @param dir the directory to search
+     * @return the attributes of each text file
+     * @throws IOException if the directory cannot be visited
+     */
+    private static Map<Path, BasicFileAttributes> listTextFiles(Path dir) throws IOException {
+
+        Map<Path, BasicFileAttributes> textFiles = new LinkedHashMap<>(); // Text files found so far
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() { // The attributes are given by the walk, so no file is read twice
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && isTextFile(file)) // If it is a regular txt file
+                    textFiles.put(file, attributes);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return textFiles; // Returns the text files
+    }
+
+    /**
+     * The entry of a file in the word index.
+     */
+    private static class IndexedFile {
+        private final Path filepath; // the indexed file
+        private final long size; // the size of the file when it was indexed
+        private final long modified; // the modification time of the file when it was indexed, in milliseconds
+        private int longestLineChars = -1; // the number of letters of the longest line, -1 if the file has no lines
+        private int longestLine = 0; // the number of the longest line
+        private final Map<String, Integer> occurrences = new HashMap<>(); // the number of occurrences of each word
+        private Set<String> commonWords = null; // the words appearing on every line that is not blank, null if there is no such line
+
+        private IndexedFile(Path filepath, long size, long modified) {
+            this.filepath = filepath;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Method that checks whether the file has not changed since it was indexed
+         * @param attributes the current attributes of the file
+         * @return True or False
+         */
+        private boolean isUpToDate(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+        }
+    }
+
+    /**
+     * A word index opened by openWordIndex(). The table of the files is decoded when the index is opened, while the
+     * table of the words is read directly from the mapped index when a query is answered. The index is mapped a window
+     * of WORD_INDEX_WINDOW bytes at a time, and positions in the file are longs, so the index may exceed 2 GB; a
+     * window always starts at the record being read, so that a record is never split between two windows.
+     */
+    private static class WordIndex implements Closeable {
+        private final FileChannel channel; // the index file
+        private final long size; // the size of the index file
+        private ByteBuffer buffer = ByteBuffer.allocate(0); // the window of the index that is mapped
+        private long bufferStart = 0; // the position of the window in the file
+        private long position = 0; // the position of the next read in the file
+        private final List<IndexedFile> files = new ArrayList<>(); // the table of the files, without their words
+        private final long wordsOffset; // the position of the table of the words in the file
+
+        private WordIndex(Path dir, FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+
+            if (getInt() != WORD_INDEX_MAGIC || getInt() != WORD_INDEX_VERSION) // If it is not an index, or an old version of it
+                throw new IOException("Not a word index");
+
+            int fileCount = getInt();
+            for (int i = 0; i < fileCount; i++) { // For each file
+                IndexedFile indexedFile = new IndexedFile(dir.resolve(readString()), getLong(), getLong());
+                indexedFile.longestLineChars = getInt();
+                indexedFile.longestLine = getInt();
+                files.add(indexedFile);
+            }
+            wordsOffset = position;
+        }
+
+        /**
+         * Method that moves past the next bytes of the index, mapping the window that contains them if needed
+         * @param length the number of bytes
+         * @return the position of the bytes in the buffer, which stays valid until the next call
+         * @throws IOException if the index is truncated or cannot be mapped
+         */
+        private int take(int length) throws IOException {
+            if (position + length > bufferStart + buffer.limit()) { // If the bytes are not all in the window
+                if (position + length > size)
+                    throw new EOFException("Truncated word index");
+                bufferStart = position;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, Math.max(WORD_INDEX_WINDOW, length)));
+            }
+            int offset = (int) (position - bufferStart);
+            position += length;
+            return offset;
+        }
+
+        private byte get() throws IOException {
+            int offset = take(1); // Maps the next window first, if needed
+            return buffer.get(offset);
+        }
+
+        private int getInt() throws IOException {
+            int offset = take(4); // Maps the next window first, if needed
+            return buffer.getInt(offset);
+        }
+
+        private long getLong() throws IOException {
+            int offset = take(8); // Maps the next window first, if needed
+            return buffer.getLong(offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close(); // The windows are unmapped when they are garbage collected
+        }
+
+        /**
+         * Method that checks whether the index describes exactly the given text files
+         * @param textFiles the text files currently in the directory
+         * @return True or False
+         */
+        private boolean isFresh(Map<Path, BasicFileAttributes> textFiles) {
+
+            if (textFiles.size() != files.size()) // If some files have been added or deleted
+                return false;
+
+            for (IndexedFile indexedFile : files) { // For each indexed file
+                BasicFileAttributes attributes = textFiles.get(indexedFile.filepath);
+                if (attributes == null || !indexedFile.isUpToDate(attributes)) // If it has been deleted or changed
+                    return false;
+            }
+
+            return true; // Otherwise, the index can be used
+        }
+
+        /**
+         * Method that decodes the whole index, so that the files that have not changed can be reused by buildWordIndex()
+         * @return the entry of each file, with its words
+         * @throws IOException if the index is truncated or cannot be mapped
+         */
+        private Map<Path, IndexedFile> toIndexedFiles() throws IOException {
+
+            position = wordsOffset;
+            int wordCount = getInt();
+            for (int i = 0; i < wordCount; i++) { // For each word
+                get(); // Skips the number of vowels
+                String word = readString();
+                int postingCount = getInt();
+                for (int j = 0; j < postingCount; j++) { // For each file containing the word
+                    IndexedFile indexedFile = files.get(getInt());
+                    indexedFile.occurrences.put(word, getInt());
+                    if (indexedFile.commonWords == null)
+                        indexedFile.commonWords = new HashSet<>();
+                    if (get() == 1) // If the word is on every line of the file
+                        indexedFile.commonWords.add(word);
+                }
+            }
+
+            Map<Path, IndexedFile> indexedFiles = new HashMap<>();
+            files.forEach(indexedFile -> indexedFiles.put(indexedFile.filepath, indexedFile));
+            return indexedFiles;
+        }
+
+        /**
+         * Method that answers the queries from the index. The words are decoded only when they are part of a result.
+         * @param queries the queries that must be answered
+         * @return the results of all the requested queries
+         * @throws IOException if the index is truncated or cannot be mapped
+         */
+        private QueryResults answer(QuerySet queries) throws IOException {
+
+            FileSummary[] summaries = new FileSummary[files.size()]; // Partial results of each file
+            for (int i = 0; i < summaries.length; i++) {
+                summaries[i] = new FileSummary(files.get(i).filepath);
+                summaries[i].longestLineChars = files.get(i).longestLineChars;
+                summaries[i].longestLine = files.get(i).longestLine;
+            }
+
+            Map<byte[], String> suffixes = new LinkedHashMap<>(); // The requested suffixes, as UTF-8 bytes
+            queries.suffixes.keySet().forEach(suffix -> suffixes.put(suffix.getBytes(StandardCharsets.UTF_8), suffix));
+
+            position = wordsOffset;
+            int wordCount = getInt();
+            for (int i = 0; i < wordCount; i++) { // For each word
+                int vowels = get();
+                int length = getInt();
+                int start = take(length); // Position of the UTF-8 bytes of the word in the window, valid until the next read
+
+                boolean hasVowels = queries.vowels.contains(vowels); // Whether the word answers a vowels query
+                List<String> endsWith = new ArrayList<>(); // The requested suffixes the word ends with
+                for (Map.Entry<byte[], String> suffix : suffixes.entrySet())
+                    if (endsWith(buffer, start, length, suffix.getKey()))
+                        endsWith.add(suffix.getValue());
+
+                boolean needed = queries.allLines || hasVowels || !endsWith.isEmpty(); // Whether the word is needed by a query
+                String word = needed ? new String(bytes(buffer, start, length), StandardCharsets.UTF_8) : null; // Decodes the word
+                int postingCount = getInt();
+                if (!needed) { // If the word is not needed by any query
+                    position += postingCount * 9L; // Skip the files containing it, without mapping them
+                    continue;
+                }
+
+                for (int j = 0; j < postingCount; j++) { // For each file containing the word
+                    FileSummary summary = summaries[getInt()];
+                    int occurrences = getInt();
+                    boolean onAllLines = get() == 1;
+
+                    if (queries.allLines && onAllLines) {
+                        if (summary.commonWords == null)
+                            summary.commonWords = new LinkedHashSet<>();
+                        summary.commonWords.add(word);
+                    }
+                    if (hasVowels)
+                        summary.wordsWithVowels.putIfAbsent(vowels, word);
+                    for (String suffix : endsWith) { // Each occurrence of the word is a result, as when the file is scanned
+                        List<String> found = summary.wordsEndingWith.computeIfAbsent(suffix, s -> new ArrayList<>());
+                        for (int k = 0; k < occurrences && found.size() < queries.suffixes.get(suffix); k++)
+                            found.add(word);
+                    }
+                }
+            }
+
+            QueryResults results = new QueryResults(queries);
+            for (FileSummary summary : summaries) // Merges the files with the same rules used by runQueries()
+                results.merge(summary);
+            return results;
+        }
+
+        /**
+         * Method that reads a String written by writeIndexString() at the current position of the index
+         * @return the String
+         * @throws IOException if the index is truncated or cannot be mapped
+         */
+        private String readString() throws IOException {
+            int length = getInt();
+            int offset = take(length); // Maps the next window first, if needed
+            return new String(bytes(buffer, offset, length), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Method that copies a range of the buffer
+         * @param buffer the buffer
+         * @param start the start of the range
+         * @param length the length of the range
+         * @return the bytes of the range
+         */
+        private static byte[] bytes(ByteBuffer buffer, int start, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(start, bytes);
+            return bytes;
+        }
+
+        /**
+         * Method that checks whether the UTF-8 bytes of a word end with the UTF-8 bytes of a suffix, which happens
+         * exactly when the word ends with the suffix
+         * @param buffer the buffer containing the word
+         * @param start the start of the word
+         * @param length the length of the word
+         * @param suffix the suffix
+         * @return True or False
+         */
+        private static boolean endsWith(ByteBuffer buffer, int start, int length, byte[] suffix) {
+
+            if (suffix.length > length)
+                return false;
+
+            for (int i = 0; i < suffix.length; i++)
+                if (buffer.get(start + length - suffix.length + i) != suffix[i])
+                    return false;
+
+            return true;
+        }
+    }
+
+    /**
+     * Method that reserves one of the remaining places of the limit of wordsEndingWith()
+     * @param remaining number of places left
+     * @param found stop signal, set when the last place is taken
+     * @return True if a place has been reserved, False if the limit has been reached
+     */
+    private static boolean reservePlace(AtomicInteger remaining, AtomicBoolean found) {
+
+        int left = remaining.getAndDecrement(); // Places left before this reservation
+        if (left <= 1) // If this was the last place, or no place was left
+            found.set(true); // Tells the other tasks to stop
+
+        return left > 0; // The reservation succeeded only if a place was left
+    }
+
+    /********************************** Used in the summary cache ***************************************************/
+
+    private static final int SUMMARY_CACHE_MAGIC = 0x45584353; // Identifies a cache file written by SummaryCache
+    private static final int SUMMARY_CACHE_VERSION = 1; // Version of the format of the cache file
+    private static final int SUMMARY_JOURNAL_MAGIC = 0x45584a4c; // Identifies a journal written by SummaryCache
+
+    /**
+     * Method that computes the partial results of a file that are stored in the summary cache: the words common to all
+     * the lines, the longest line and the first word for each number of vowels. The file is read once, as the queries
+     * read it: a large file is split into chunks (see processChunks()) and long lines are read in segments (see
+     * LineSegmentReader), and each segment is split into words only once for all the partial results.
+     * @param file the file
+     * @param attributes the current attributes of the file
+     * @param hash the content hash of the file, 0 if it is not used
+     * @param stop checked before each segment, the scan stops as soon as it returns true
+     * @return the partial results of the file, or null if the scan has been stopped
+     * @throws IOException if the file cannot be read
+     */
+    private static CachedSummary computeCachedSummary(Path file, BasicFileAttributes attributes, long hash, BooleanSupplier stop) throws IOException {
+
+        try {
+            if (isLargeFile(file)) // If the file is large, its chunks are summarised in parallel and merged in order
+                return processChunks(file, (channel, from, to) -> {
+                    if (stop.getAsBoolean())
+                        return null;
+                    try (LineSegmentReader lines = LineSegmentReader.open(channel, from, to)) { // Reads the lines of the chunk
+                        return summarizeLines(lines, new CachedSummary(attributes, hash), stop);
+                    }
+                }, CachedSummary::concat);
+            try (LineSegmentReader lines = LineSegmentReader.open(file)) { // Reads the lines of the text file, a long line in several segments
+                return summarizeLines(lines, new CachedSummary(attributes, hash), stop);
+            }
+        } catch (UncheckedIOException exception) { // If the file is not valid UTF-8
+            throw exception.getCause();
+        }
+    }
+
+    /**
+     * Method used in computeCachedSummary() that summarises a sequence of lines
+     * @param lines the lines of a file, or of a chunk of a file, read one segment at a time
+     * @param summary the summary, initially empty, which receives the partial results
+     * @param stop checked before each segment, the scan stops as soon as it returns true
+     * @return the summary, or null if the scan has been stopped
+     * @throws IOException if the lines cannot be read
+     */
+    private static CachedSummary summarizeLines(LineSegmentReader lines, CachedSummary summary, BooleanSupplier stop) throws IOException {
+
+        CommonWordsFinder commonWords = new CommonWordsFinder(); // Intersection of the lines read so far
+        int letters = 0; // Amount of letters of the current line, added up over its segments
+        for (String segment = lines.next(); segment != null; segment = lines.next()) { // For each segment
+            if (stop.getAsBoolean()) // The summary would be incomplete
+                return null;
+            letters += countChars(segment);
+            WordTokenizer tokenizer = WordTokenizer.of(segment); // Words of the segment
+            commonWords.addSegment(segment, tokenizer, lines.endsLine()); // Blank lines are ignored, as in computeWordsCommonToAllLines()
+            for (int i = 0; i < tokenizer.count(); i++) { // For each word of the segment
+                int vowels = tokenizer.countVowels(i);
+                if (!summary.wordsWithVowels.containsKey(vowels)) // Keep only the first word of each number of vowels
+                    summary.wordsWithVowels.put(vowels, tokenizer.word(i));
+            }
+            if (lines.endsLine()) { // At the end of a line
+                summary.lines++;
+                if (letters > summary.longestLineChars) { // If a new longest line is found
+                    summary.longestLineChars = letters;
+                    summary.longestLine = summary.lines;
+                }
+                letters = 0;
+            }
+        }
+        summary.commonWords = commonWords.commonWords().orElse(null); // The common words, null if all the lines are blank
+
+        return summary; // Returns the partial results of the lines
+    }
+
+    /**
+     * A cache on disk of the partial results of the files, which are reused by the following runs as long as the
+     * files do not change. It is enabled with -Dexam.cache=<cache file>, and used by computeWordsCommonToAllLines(),
+     * computeLongestLine() and computeWordWithVowels(). The words ending with a suffix are not cached, as they would
+     * need all the words of the file.
+     * <p>
+     * An entry is valid when the size, the modification time and the file key (the device and inode of the file) have
+     * not changed. With -Dexam.cacheHash=true the content of the file is hashed instead of checking the modification
+     * time and the file key: the file is read, but not split into words, and a file that has only been touched or
+     * copied keeps its entry. At most -Dexam.cacheEntries entries are kept (100000 by default), the least recently used
+     * ones are dropped first. The cache is loaded when first used and written back when the JVM exits, if it has changed.
+     * <p>
+     * With -Dexam.journal=true every new entry is also appended to a journal next to the cache file (the cache file
+     * followed by .journal), so that a run that is killed before the cache is written back keeps the files it has
+     * finished: the next run replays the journal and only reads the files that were in progress. The journal is
+     * synced to the disk every -Dexam.journalSyncEntries entries (256 by default) or -Dexam.journalSyncMillis
+     * milliseconds (1000 by default), whichever comes first, so a crash loses at most the entries since the last
+     * sync. Each entry is checked with a CRC-32C, and the replay stops at the first entry that was not completely
+     * written. The journal is emptied when the cache is written back.
+     */
+    private static class SummaryCache {
+        private static final Path FILE = System.getProperty("exam.cache") == null ? null : Paths.get(System.getProperty("exam.cache")); // the cache file, null if the cache is disabled
+        private static final boolean HASH = Boolean.getBoolean("exam.cacheHash"); // whether the content of the files is hashed
+        private static final int MAX_ENTRIES = Integer.getInteger("exam.cacheEntries", 100_000); // the maximum number of entries
+        private static final Map<Path, CachedSummary> ENTRIES = new LinkedHashMap<>(16, 0.75f, true) { // the entries in access order
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CachedSummary> eldest) {
+                return size() > MAX_ENTRIES; // Drops the least recently used entry
+            }
+        };
+        private static volatile boolean loaded = false; // whether the cache file has been read, checked without a lock by every lookup
+        private static boolean changed = false; // whether some entries have to be written back
+        private static final Path JOURNAL_FILE = FILE == null || !Boolean.getBoolean("exam.journal") ? null : FILE.resolveSibling(FILE.getFileName() + ".journal"); // the journal, null if it is disabled
+        private static final int JOURNAL_SYNC_ENTRIES = Math.max(1, Integer.getInteger("exam.journalSyncEntries", 256)); // entries appended between two syncs
+        private static final long JOURNAL_SYNC_MILLIS = Long.getLong("exam.journalSyncMillis", 1000); // the longest time between two syncs
+        private static final int JOURNAL_HEADER = 9; // the bytes of the header of the journal: magic, version and HASH
+        private static final Object JOURNAL_LOCK = new Object(); // guards the journal, taken after ENTRIES when both are needed
+        private static FileChannel journal = null; // the open journal, null if it is disabled or cannot be written
+        private static int unsynced = 0; // the entries appended since the last sync
+        private static long lastSync = 0; // when the journal was last synced, from System.nanoTime()
+
+        /**
+         * Method that finds the partial results of a file: they are taken from the cache if the file has not changed,
+         * otherwise they are computed and stored in the cache. A file that is not in the cache is not read once the
+         * query has stopped, and a scan stopped by the query is neither cached nor journaled, as its results are not
+         * complete: the query then reads the file without the cache, and stops too.
+         * @param file the file
+         * @param stop the stop signal of the query, checked before and while the file is scanned
+         * @return the partial results of the file, or null if the cache is disabled, the file cannot be read or the
+         * query has stopped before the file has been scanned
+         */
+        private static CachedSummary lookup(Path file, BooleanSupplier stop) {
+
+            if (FILE == null) // If the cache is disabled
+                return null;
+            load();
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                long hash = HASH ? hash(file) : 0; // The content hash, if it is used
+                Path key = file.toAbsolutePath();
+                CachedSummary summary;
+                synchronized (ENTRIES) {
+                    summary = ENTRIES.get(key);
+                }
+                if (summary != null && summary.matches(attributes, hash)) // If the file has not changed
+                    return summary;
+
+                if (stop.getAsBoolean()) // If the query no longer needs the file
+                    return null;
+                summary = computeCachedSummary(file, attributes, hash, stop);
+                if (summary == null) // If the scan has been stopped
+                    return null;
+                synchronized (ENTRIES) {
+                    ENTRIES.put(key, summary);
+                    changed = true;
+                }
+                appendToJournal(key, summary); // Kept even if the JVM is killed before the cache is written back
+                return summary;
+            } catch (IOException exception) { // If the file cannot be read, the query reads it without the cache and reports the error
+                return null;
+            }
+        }
+
+        /**
+         * Method that computes the content hash of a file
+         * @param file the file
+         * @return the CRC-32C of the content, combined with the size
+         * @throws IOException if the file cannot be read
+         */
+        private static long hash(Path file) throws IOException {
+            CRC32C crc = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            long size = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    size += buffer.remaining();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+            }
+            return size << 32 ^ crc.getValue();
+        }
+
+        /**
+         * Method that reads the cache file the first time the cache is used, and makes sure it is written back when the
+         * JVM exits. A cache file that is missing or not valid is ignored. Once the cache has been read, the lookups
+         * only check a volatile flag, so the threads of a query do not wait for each other on every file.
+         */
+        private static void load() {
+
+            if (loaded) // The cache has been read by an earlier lookup
+                return;
+            synchronized (SummaryCache.class) { // The other lookups wait until the cache has been read
+                if (loaded)
+                    return;
+                Runtime.getRuntime().addShutdownHook(new Thread(SummaryCache::save, "exam-cache"));
+
+                if (Files.exists(FILE)) { // If a run has written the cache
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(FILE)))) {
+                        if (in.readInt() == SUMMARY_CACHE_MAGIC && in.readInt() == SUMMARY_CACHE_VERSION && in.readBoolean() == HASH) { // Unless it was written by another version, or with another kind of key
+                            int count = in.readInt();
+                            synchronized (ENTRIES) {
+                                for (int i = 0; i < count; i++) {
+                                    Path path = Paths.get(in.readUTF());
+                                    ENTRIES.put(path, CachedSummary.read(in));
+                                }
+                            }
+                        }
+                    } catch (IOException | RuntimeException exception) { // If the cache file is corrupted
+                        synchronized (ENTRIES) {
+                            ENTRIES.clear(); // Start from an empty cache
+                        }
+                    }
+                }
+
+                if (JOURNAL_FILE != null)
+                    openJournal();
+                loaded = true;
+            }
+        }
+
+        /**
+         * Method that replays the journal left by a run that did not write the cache back, and opens it to append the
+         * new entries. The entries after the last complete one are cut off.
+         */
+        private static void openJournal() {
+
+            int recovered = 0; // Entries found in the journal
+            long valid = 0; // The end of the last complete entry
+            try {
+                long size = Files.exists(JOURNAL_FILE) ? Files.size(JOURNAL_FILE) : 0;
+                if (size >= JOURNAL_HEADER) {
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(JOURNAL_FILE)))) {
+                        if (in.readInt() == SUMMARY_JOURNAL_MAGIC && in.readInt() == SUMMARY_CACHE_VERSION && in.readBoolean() == HASH) { // Unless it was written by another version, or with another kind of key
+                            valid = JOURNAL_HEADER;
+                            while (valid + 12 <= size) { // For each entry: its length, its CRC-32C and its content
+                                int length = in.readInt();
+                                long checksum = in.readLong();
+                                if (length < 0 || valid + 12 + length > size)
+                                    break; // The entry was not completely written
+                                byte[] entry = new byte[length];
+                                in.readFully(entry);
+                                CRC32C crc = new CRC32C();
+                                crc.update(entry);
+                                if (crc.getValue() != checksum)
+                                    break;
+                                DataInputStream entryIn = new DataInputStream(new ByteArrayInputStream(entry));
+                                Path path = Paths.get(entryIn.readUTF());
+                                CachedSummary summary = CachedSummary.read(entryIn);
+                                synchronized (ENTRIES) {
+                                    ENTRIES.put(path, summary);
+                                    changed = true; // Written back to the cache file when the JVM exits
+                                }
+                                recovered++;
+                                valid += 12 + length;
+                            }
+                        }
+                    }
+                }
+                FileChannel channel = FileChannel.open(JOURNAL_FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (valid == 0) { // A new journal, or one written by another version
+                    ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER).putInt(SUMMARY_JOURNAL_MAGIC).putInt(SUMMARY_CACHE_VERSION).put((byte) (HASH ? 1 : 0));
+                    channel.truncate(0).write(header.flip(), 0);
+                    valid = JOURNAL_HEADER;
+                }
+                channel.truncate(valid).position(valid); // Drops the entry that was not completely written
+                channel.force(false);
+                synchronized (JOURNAL_LOCK) {
+                    journal = channel;
+                    lastSync = System.nanoTime();
+                }
+            } catch (IOException | RuntimeException exception) { // If the journal cannot be used, the cache works without it
+                exception.printStackTrace(); // Prints the error
+            }
+            if (recovered > 0)
+                System.err.println("[journal] " + recovered + " files recovered from " + JOURNAL_FILE);
+        }
+
+        /**
+         * Method that appends an entry to the journal, and syncs the journal if JOURNAL_SYNC_ENTRIES entries have been
+         * appended or JOURNAL_SYNC_MILLIS milliseconds have passed since the last sync
+         * @param path the key of the entry
+         * @param summary the entry
+         */
+        private static void appendToJournal(Path path, CachedSummary summary) {
+
+            if (JOURNAL_FILE == null)
+                return;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                try (DataOutputStream out = new DataOutputStream(bytes)) {
+                    out.writeUTF(path.toString());
+                    summary.write(out);
+                }
+                byte[] entry = bytes.toByteArray();
+                CRC32C crc = new CRC32C();
+                crc.update(entry);
+                ByteBuffer record = ByteBuffer.allocate(12 + entry.length).putInt(entry.length).putLong(crc.getValue()).put(entry).flip();
+
+                synchronized (JOURNAL_LOCK) {
+                    if (journal == null) // If the journal cannot be used
+                        return;
+                    while (record.hasRemaining())
+                        journal.write(record);
+                    if (++unsynced >= JOURNAL_SYNC_ENTRIES || System.nanoTime() - lastSync >= JOURNAL_SYNC_MILLIS * 1_000_000) {
+                        journal.force(false); // A single sync for all the entries appended since the last one
+                        unsynced = 0;
+                        lastSync = System.nanoTime();
+                    }
+                }
+            } catch (IOException exception) { // If the journal cannot be written, the cache works without it
+                exception.printStackTrace(); // Prints the error
+                synchronized (JOURNAL_LOCK) {
+                    journal = null;
+                }
+            }
+        }
+
+        /**
+         * Method that writes the cache back to its file, from the least to the most recently used entry. The cache is
+         * written to a temporary file that then replaces the cache file, so that a run never sees half a cache.
+         */
+        private static void save() {
+
+            synchronized (ENTRIES) {
+                if (!changed)
+                    return;
+                try {
+                    Path absoluteFile = FILE.toAbsolutePath(); // The temporary file is created next to the cache
+                    Path temporaryFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                        out.writeInt(SUMMARY_CACHE_MAGIC);
+                        out.writeInt(SUMMARY_CACHE_VERSION);
+                        out.writeBoolean(HASH);
+                        out.writeInt(ENTRIES.size());
+                        for (Map.Entry<Path, CachedSummary> entry : ENTRIES.entrySet()) {
+                            out.writeUTF(entry.getKey().toString());
+                            entry.getValue().write(out);
+                        }
+                    } catch (IOException exception) { // If the cache cannot be written
+                        Files.deleteIfExists(temporaryFile); // Do not leave the temporary file behind
+                        throw exception;
+                    }
+                    Files.move(temporaryFile, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // Replaces the previous cache
+                    changed = false;
+                    synchronized (JOURNAL_LOCK) {
+                        if (journal != null)
+                            journal.truncate(JOURNAL_HEADER).force(false); // Its entries are all in the cache file now
+                    }
+                } catch (IOException exception) { // If an error occurs
+                    exception.printStackTrace(); // Prints the error
+                }
+            }
+        }
+    }
+
+    /**
+     * The partial results of a file stored in the summary cache, with the attributes of the file when they were computed.
+     */
+    private static class CachedSummary {
+        private final long size; // the size of the file
+        private final long modified; // the modification time of the file, in milliseconds
+        private final String fileKey; // the identity of the file (device and inode), empty if the filesystem has none
+        private final long hash; // the content hash of the file, 0 if it is not used
+        private int longestLineChars = -1; // the number of letters of the longest line, -1 if the file has no lines
+        private int longestLine = 0; // the number of the longest line
+        private List<String> commonWords = null; // the words appearing on every line that is not blank, null if there is no such line
+        private final Map<Integer, String> wordsWithVowels = new HashMap<>(); // the first word of the file for each number of vowels
+        private int lines = 0; // the number of lines, only used while the file is scanned and not stored
+
+        private CachedSummary(long size, long modified, String fileKey, long hash) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+
+        private CachedSummary(BasicFileAttributes attributes, long hash) {
+            this(attributes.size(), attributes.lastModifiedTime().toMillis(), Objects.toString(attributes.fileKey(), ""), hash);
+        }
+
+        /**
+         * Method that checks whether the file has not changed since the summary was computed
+         * @param attributes the current attributes of the file
+         * @param currentHash the current content hash of the file, 0 if it is not used
+         * @return True or False
+         */
+        private boolean matches(BasicFileAttributes attributes, long currentHash) {
+            if (attributes.size() != size)
+                return false;
+            if (SummaryCache.HASH)
+                return currentHash == hash;
+            return attributes.lastModifiedTime().toMillis() == modified && Objects.toString(attributes.fileKey(), "").equals(fileKey);
+        }
+
+        /**
+         * Method that merges the summaries of two consecutive chunks of a file, see computeCachedSummary()
+         * @param first the summary of the first chunk, null if its scan has been stopped
+         * @param second the summary of the second chunk, null if its scan has been stopped
+         * @return the summary of both chunks, or null if the scan of one of them has been stopped
+         */
+        private static CachedSummary concat(CachedSummary first, CachedSummary second) {
+            if (first == null || second == null) // The summary would be incomplete
+                return null;
+            if (second.longestLineChars > first.longestLineChars) { // The first line wins a tie, as in a single scan
+                first.longestLineChars = second.longestLineChars;
+                first.longestLine = first.lines + second.longestLine;
+            }
+            first.lines += second.lines;
+            first.commonWords = intersectCommonWords(Optional.ofNullable(first.commonWords), Optional.ofNullable(second.commonWords)).orElse(null);
+            second.wordsWithVowels.forEach(first.wordsWithVowels::putIfAbsent); // The first word of the file is in the first chunk that has one
+            return first;
+        }
+
+        /**
+         * Method that writes the summary to the cache file
+         * @param out the cache file
+         * @throws IOException if the cache cannot be written
+         */
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeUTF(fileKey);
+            out.writeLong(hash);
+            out.writeInt(longestLineChars);
+            out.writeInt(longestLine);
+            out.writeInt(commonWords == null ? -1 : commonWords.size());
+            if (commonWords != null)
+                for (String word : commonWords)
+                    writeIndexString(out, word);
+            out.writeInt(wordsWithVowels.size());
+            for (Map.Entry<Integer, String> word : wordsWithVowels.entrySet()) {
+                out.writeInt(word.getKey());
+                writeIndexString(out, word.getValue());
+            }
+        }
+
+        /**
+         * Method that reads a summary written by write()
+         * @param in the cache file
+         * @return the summary
+         * @throws IOException if the cache cannot be read
+         */
+        private static CachedSummary read(DataInputStream in) throws IOException {
+            CachedSummary summary = new CachedSummary(in.readLong(), in.readLong(), in.readUTF(), in.readLong());
+            summary.longestLineChars = in.readInt();
+            summary.longestLine = in.readInt();
+            int commonWords = in.readInt();
+            if (commonWords >= 0) {
+                summary.commonWords = new ArrayList<>(commonWords);
+                for (int i = 0; i < commonWords; i++)
+                    summary.commonWords.add(readIndexString(in));
+            }
+            int words = in.readInt();
+            for (int i = 0; i < words; i++)
+                summary.wordsWithVowels.put(in.readInt(), readIndexString(in));
+            return summary;
+        }
+    }
+
+    /**
+     * Method that reads a String written by writeIndexString()
+     * @param in the file
+     * @return the String
+     * @throws IOException if the file cannot be read
+     */
+    private static String readIndexString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /********************************** Used in the daemon **********************************************************/
+
+    /**
+     * Method that keeps the partial results of every text file of a directory in memory and answers the queries sent
+     * to a Unix domain socket, until a client sends "stop". The partial results are updated by a WatchService when
+     * text files are added, changed or deleted, so a query never scans the directory again.
+     * <p>
+     * A request is a single line with the queries separated by tabs, in the form used by runQueries()
+     * (allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>); the answer is printed like method main
+     * would, and the connection is closed. Several clients are served at once by a pool of daemon threads.
+     *
+     * @param dir    the directory to serve
+     * @param socket the path of the socket
+     * @throws IOException if the socket cannot be opened
+     */
+    private static void serve(Path dir, Path socket) throws IOException {
+
+        ResidentIndex index = new ResidentIndex(dir); // Partial results of the files
+        index.load();
+        Thread watcher = new Thread(index::watch, "exam-watcher"); // Keeps the partial results up to date
+        watcher.setDaemon(true);
+        watcher.start();
+
+        Files.deleteIfExists(socket); // Left behind by a daemon that did not stop cleanly
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX); // Closed by the client that stops the daemon
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println("Serving " + dir + " on " + socket + ", " + index.size() + " files loaded");
+
+            ExecutorService clients = Executors.newFixedThreadPool(Math.max(2, QueryExecutor.THREADS), task -> { // Answers the clients
+                Thread thread = new Thread(task, "exam-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+            while (server.isOpen()) { // For each client, until one of them stops the daemon
+                try {
+                    SocketChannel client = server.accept();
+                    clients.execute(() -> {
+                        try (client) {
+                            if (!answerRequest(index, client)) // If the client has stopped the daemon
+                                server.close(); // The next accept() fails
+                        } catch (IOException | RuntimeException exception) { // If an error occurs, the other clients are still served
+                            exception.printStackTrace(); // Prints the error
+                        }
+                    });
+                } catch (ClosedChannelException exception) { // If the daemon has been stopped
+                    break;
+                } catch (IOException | RuntimeException exception) { // If an error occurs, the next clients are still served
+                    exception.printStackTrace(); // Prints the error
+                }
+            }
+            clients.shutdown(); // The requests that are being answered are completed
+            try {
+                clients.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException exception) { // If an error occurs
+                exception.printStackTrace(); // Prints the error
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * Method that reads the request of a client of serve() and writes the answer
+     * @param index the partial results of the files
+     * @param client the connection with the client
+     * @return False if the client has stopped the daemon, True otherwise
+     * @throws IOException if the connection fails
+     */
+    private static boolean answerRequest(ResidentIndex index, SocketChannel client) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(Channels.newOutputStream(client), false, StandardCharsets.UTF_8);
+        String request = reader.readLine(); // The queries, separated by tabs
+
+        if (request == null || request.isBlank()) {
+            out.println("Empty request");
+        } else if (request.equals("stop")) {
+            out.println("Stopped");
+        } else {
+            try {
+                Tools.printResults(index.answer(Tools.parseQueries(request.split("\t"))), out);
+            } catch (RuntimeException exception) { // If the request is not valid
+                out.println("Invalid request: " + exception.getMessage());
+            }
+        }
+        out.flush();
+        return !"stop".equals(request);
+    }
+
+    /**
+     * Method that sends a request to a daemon started with serve() and prints its answer
+     * @param socket the path of the socket of the daemon
+     * @param queries the queries, or "stop" to stop the daemon
+     * @throws IOException if the daemon cannot be reached
+     */
+    private static void askDaemon(Path socket, String[] queries) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(StandardCharsets.UTF_8.encode(String.join("\t", queries) + "\n"));
+            channel.shutdownOutput(); // The request is complete
+            Channels.newInputStream(channel).transferTo(System.out); // Prints the answer
+            System.out.flush();
+        }
+    }
+
+    /**
+     * The partial results of all the text files of a directory, kept in memory by serve(). Each file is stored with
+     * its IndexedFile, the same entry used by the word index, and with the first word of each number of vowels.
+     * <p>
+     * The files are sorted by their names, one directory level at a time, so that the files of a directory are next
+     * to each other and a deleted directory is removed without visiting the other files. The answers are kept until
+     * the next change of the files, so the same request is merged only once between two watch events.
+     */
+    private static class ResidentIndex {
+        private static final int MAX_ANSWERS = 64; // the most answers kept between two changes
+        private static final Comparator<Path> BY_NAMES = (a, b) -> { // orders the paths one name at a time, so that a directory precedes its files and they precede its siblings
+            int names = Math.min(a.getNameCount(), b.getNameCount());
+            for (int i = 0; i < names; i++) {
+                int order = a.getName(i).compareTo(b.getName(i));
+                if (order != 0)
+                    return order;
+            }
+            return Integer.compare(a.getNameCount(), b.getNameCount());
+        };
+        private final Path dir; // the directory
+        private final ConcurrentNavigableMap<Path, ResidentFile> files = new ConcurrentSkipListMap<>(BY_NAMES); // the partial results of each text file
+        private final AtomicLong version = new AtomicLong(); // incremented after each change of the files
+        private volatile Answers answers = new Answers(0); // the answers computed since the last change
+
+        private ResidentIndex(Path dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * @return the number of text files
+         */
+        private int size() {
+            return files.size();
+        }
+
+        /**
+         * Method that scans all the text files of the directory again
+         * @throws IOException if the directory cannot be read
+         */
+        private void load() throws IOException {
+            Map<Path, BasicFileAttributes> textFiles = listTextFiles(dir); // The text files with their attributes
+            if (files.keySet().retainAll(textFiles.keySet())) // Forgets the files that no longer exist
+                version.incrementAndGet();
+            textFiles.entrySet().parallelStream().forEach(textFile -> update(textFile.getKey(), textFile.getValue()));
+        }
+
+        /**
+         * Method that updates the partial results of a file after it has been changed. If the file is no longer a text
+         * file (for example because it has been deleted) its partial results are removed, together with the ones of
+         * the files inside it if it was a directory that no longer exists.
+         * @param file the file that has changed
+         */
+        private void update(Path file) {
+            BasicFileAttributes attributes = null; // The current attributes, null if the file has been deleted
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && isTextFile(file)) {
+                    update(file, attributes);
+                    return;
+                }
+            } catch (IOException exception) { // If the file has been deleted
+                // Removed below
+            }
+            boolean changed = files.remove(file) != null;
+            if (attributes == null || !attributes.isDirectory()) { // The files of a deleted directory, which follow it in the map
+                for (Iterator<Path> paths = files.tailMap(file, false).keySet().iterator(); paths.hasNext(); ) {
+                    if (!paths.next().startsWith(file)) // If the files of the directory are over
+                        break;
+                    paths.remove();
+                    changed = true;
+                }
+            }
+            if (changed)
+                version.incrementAndGet();
+        }
+
+        /**
+         * Method that scans a text file, unless it has not changed since the last scan
+         * @param file the text file
+         * @param attributes the current attributes of the file
+         */
+        private void update(Path file, BasicFileAttributes attributes) {
+            ResidentFile old = files.get(file);
+            if (old == null || !old.indexedFile.isUpToDate(attributes)) {
+                files.put(file, new ResidentFile(computeIndexedFile(file, attributes)));
+                version.incrementAndGet();
+            }
+        }
+
+        /**
+         * Method that answers some queries with the partial results of the files, with the same rules of runQueries().
+         * The answer is merged again only if the files have changed since the same queries were last answered.
+         * @param queries the queries
+         * @return the results of the queries
+         */
+        private QueryResults answer(QuerySet queries) {
+
+            long current = version.get(); // Read before the files, so that an answer is never newer than its version
+            Answers known = answers;
+            if (known.version != current) { // If the files have changed, the previous answers are forgotten
+                known = new Answers(current);
+                answers = known;
+            }
+            String key = queries.allLines + "\t" + queries.longestLine + "\t" + new TreeSet<>(queries.vowels) + "\t" + new TreeMap<>(queries.suffixes);
+            QueryResults results = known.results.get(key);
+            if (results != null) // If the same queries have been answered since the last change
+                return results;
+
+            results = new QueryResults(queries);
+            for (ResidentFile file : files.values()) // In the order of the map, so the same request always gets the same answer
+                results.merge(file.summary(queries));
+            if (known.results.size() < MAX_ANSWERS)
+                known.results.put(key, results);
+            return results;
+        }
+
+        /**
+         * Method run by the thread of the WatchService: it watches the directory and all its subdirectories, and
+         * updates the partial results of the files that change. If some events are lost, everything is loaded again.
+         */
+        private void watch() {
+            try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+                register(watchService, dir);
+                while (true) {
+                    WatchKey key = watchService.take(); // Waits for the next changes
+                    Path watched = (Path) key.watchable(); // The directory that has changed
+                    for (WatchEvent<?> event : key.pollEvents()) { // For each change
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) { // If some events have been lost
+                            register(watchService, dir);
+                            load();
+                            continue;
+                        }
+                        Path file = watched.resolve((Path) event.context()); // The file that has changed
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) { // If a directory has been created
+                            register(watchService, file);
+                            listTextFiles(file).forEach(this::update); // Its files may have been created before it was registered
+                        } else {
+                            update(file);
+                        }
+                    }
+                    key.reset(); // Receives the next changes of the directory
+                }
+            } catch (IOException exception) { // If an error occurs
+                exception.printStackTrace(); // Prints the error
+            } catch (InterruptedException | ClosedWatchServiceException exception) { // If the daemon is stopping
+                // Nothing else to do
+            }
+        }
+
+        /**
+         * Method that registers a directory and its subdirectories with a WatchService
+         * @param watchService the WatchService
+         * @param start the directory
+         * @throws IOException if a directory cannot be registered
+         */
+        private void register(WatchService watchService, Path start) throws IOException {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * The answers computed by ResidentIndex for a version of its files, for each set of queries.
+     */
+    private static class Answers {
+        private final long version; // the version of the files
+        private final Map<String, QueryResults> results = new ConcurrentHashMap<>(); // the answer of each set of queries
+
+        private Answers(long version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * The partial results of a file kept in memory by ResidentIndex.
+     */
+    private static class ResidentFile {
+        private final IndexedFile indexedFile; // the words, common words and longest line of the file
+        private final Map<Integer, String> wordsWithVowels = new HashMap<>(); // a word of the file for each number of vowels
+
+        private ResidentFile(IndexedFile indexedFile) {
+            this.indexedFile = indexedFile;
+            indexedFile.occurrences.keySet().forEach(word -> wordsWithVowels.putIfAbsent(countVowels(word), word));
+        }
+
+        /**
+         * Method that extracts the partial results of the file that are needed by some queries
+         * @param queries the queries
+         * @return the partial results of the file
+         */
+        private FileSummary summary(QuerySet queries) {
+
+            FileSummary summary = new FileSummary(indexedFile.filepath);
+            summary.longestLineChars = indexedFile.longestLineChars;
+            summary.longestLine = indexedFile.longestLine;
+            if (queries.allLines)
+                summary.commonWords = indexedFile.commonWords;
+            for (int vowels : queries.vowels)
+                if (wordsWithVowels.containsKey(vowels))
+                    summary.wordsWithVowels.put(vowels, wordsWithVowels.get(vowels));
+
+            if (!queries.suffixes.isEmpty()) { // Each occurrence of a word is a result, as when the file is scanned
+                for (Map.Entry<String, Integer> word : indexedFile.occurrences.entrySet())
+                    for (Map.Entry<String, Integer> suffix : queries.suffixes.entrySet())
+                        if (word.getKey().endsWith(suffix.getKey())) {
+                            List<String> found = summary.wordsEndingWith.computeIfAbsent(suffix.getKey(), s -> new ArrayList<>());
+                            for (int k = 0; k < word.getValue() && found.size() < suffix.getValue(); k++)
+                                found.add(word.getKey());
+                        }
+            }
+            return summary;
+        }
+    }
+
+    /********************************** Used in the compressed files ************************************************/
+
+    private static final boolean COMPRESSED_FILES = Boolean.getBoolean("exam.gzip"); // Whether .txt.gz files are searched too
+
+    /**
+     * Method that checks whether a file is searched by the queries: a file ending with ".txt", or with ".txt.gz" when
+     * the JVM is started with -Dexam.gzip=true
+     * @param file the file
+     * @return True or False
+     */
+    private static boolean isTextFile(Path file) {
+        String name = file.toString();
+        return name.endsWith(".txt") || isCompressed(file);
+    }
+
+    /**
+     * Method that checks whether a file is a gzip-compressed text file that is searched by the queries
+     * @param file the file
+     * @return True or False
+     */
+    private static boolean isCompressed(Path file) {
+        return COMPRESSED_FILES && file.toString().endsWith(".txt.gz");
+    }
+
+    /**
+     * Method that reads the lines of a text file, counting them in the statistics of the current query.
+     * A compressed file is decompressed by a PipelinedInputStream, so that its lines are tokenized while the
+     * following blocks are decompressed by another thread. With -Dexam.readAhead the other files are read ahead
+     * in the same way, see PipelinedInputStream.open().
+     * @param file the file
+     * @return the lines of the file, which must be closed
+     * @throws IOException if the file cannot be opened
+     */
+    private static Stream<String> readLines(Path file) throws IOException {
+
+        if (!isCompressed(file) && !PipelinedInputStream.READ_AHEAD)
+            return QueryStats.countLines(Files.lines(file));
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(PipelinedInputStream.open(file),
+                StandardCharsets.UTF_8.newDecoder())); // Malformed input is reported, as by Files.lines()
+        return QueryStats.countLines(reader.lines().onClose(() -> {
+            try {
+                reader.close(); // Stops the decompression
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }));
+    }
+
+    /**
+     * The content of a file read ahead by another thread: a thread of READERS reads (and decompresses, for a .txt.gz
+     * file) the file into a ring of reusable buffers, and the reader takes the filled buffers in order and gives them
+     * back once it has read them. The reading stays at most as many buffers ahead of the reader as the ring has, so
+     * a task tokenizes a block while the next ones are read from the disk, and no buffer is allocated per block.
+     * <p>
+     * Compressed files are always read ahead, by BLOCKS buffers. The other files are read ahead only with
+     * -Dexam.readAhead=<buffers>, for disks where the reads are slow (network filesystems, cold caches of hard
+     * disks): on a local disk the cost of the hand-off is higher than the time saved. The size of the buffers is
+     * -Dexam.readBlockSize (64 KiB by default). When a file is closed its buffers are kept in SPARE for the next
+     * files, so the memory of the buffers is bounded by the number of files read at the same time.
+     */
+    private static class PipelinedInputStream extends InputStream {
+        private static final int BLOCK_SIZE = Math.max(1 << 12, Integer.getInteger("exam.readBlockSize", 1 << 16)); // the size of each buffer
+        private static final int READ_AHEAD_BLOCKS = Integer.getInteger("exam.readAhead", 0); // the buffers of a file that is not compressed, 0 to read it without read-ahead
+        private static final boolean READ_AHEAD = READ_AHEAD_BLOCKS > 0; // whether the files that are not compressed are read ahead
+        private static final int BLOCKS = READ_AHEAD ? READ_AHEAD_BLOCKS : 4; // the number of buffers of each file
+        private static final ByteBuffer END = ByteBuffer.allocate(0); // marks the end of the file, or an error
+        private static final BlockingQueue<ByteBuffer> SPARE = new ArrayBlockingQueue<>(Math.max(1, QueryExecutor.THREADS) * BLOCKS); // the buffers of the closed files
+        private static final ExecutorService READERS = newReaders(Math.max(2, QueryExecutor.THREADS)); // the threads that read the files, one per thread of the query pools
+
+        private final List<ByteBuffer> buffers = new ArrayList<>(BLOCKS); // the ring of the file
+        private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BLOCKS + 1); // the buffers to read, followed by END
+        private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(BLOCKS); // the buffers that can be filled again
+        private final AtomicInteger users = new AtomicInteger(2); // the reader and the thread of READERS, the last one to finish gives the buffers back
+        private volatile boolean closed = false; // whether the reader has closed the stream
+        private volatile IOException failure = null; // the error of the reading, if any
+        private ByteBuffer current = null; // the buffer being read
+
+        private PipelinedInputStream(InputStream source) {
+            for (int i = 0; i < BLOCKS; i++) {
+                ByteBuffer buffer = SPARE.poll(); // Reuses the buffers of a closed file
+                buffers.add(buffer != null ? buffer : ByteBuffer.allocate(BLOCK_SIZE));
+            }
+            empty.addAll(buffers);
+            READERS.execute(() -> readAhead(source));
+        }
+
+        /**
+         * Method that creates the pool of the threads that read the files. The files opened while all the threads
+         * are busy wait in its queue, and their readers wait in fill() until a thread is free, so the number of
+         * threads stays bounded however many files are open, for example with the virtual mode of QueryExecutor.
+         * @param threads the maximum number of threads
+         * @return the pool, whose idle threads stop after a minute
+         */
+        private static ExecutorService newReaders(int threads) {
+            ThreadPoolExecutor readers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "exam-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+            readers.allowCoreThreadTimeOut(true);
+            return readers;
+        }
+
+        /**
+         * Method that opens a text file, decompressing it if it is compressed. The file is read ahead if it is
+         * compressed or if -Dexam.readAhead is set.
+         * @param file the file
+         * @return the content of the file
+         * @throws IOException if the file cannot be opened
+         */
+        private static InputStream open(Path file) throws IOException {
+            InputStream in = Files.newInputStream(file);
+            if (!isCompressed(file))
+                return READ_AHEAD ? new PipelinedInputStream(in) : in;
+            try {
+                return new PipelinedInputStream(new GZIPInputStream(in, BLOCK_SIZE)); // Fails here if the file is not in gzip format
+            } catch (IOException exception) { // If the file is not compressed after all
+                in.close();
+                throw exception;
+            }
+        }
+
+        /**
+         * Method run by the thread that reads the file
+         * @param source the file
+         */
+        private void readAhead(InputStream source) {
+            try (source) {
+                while (!closed) {
+                    ByteBuffer buffer = empty.poll(100, TimeUnit.MILLISECONDS); // Waits for the reader to give back a buffer
+                    if (buffer == null)
+                        continue;
+                    int length = source.readNBytes(buffer.array(), 0, BLOCK_SIZE);
+                    if (length == 0) // End of the file
+                        break;
+                    buffer.clear().limit(length);
+                    filled.put(buffer); // There is always room, as there are only BLOCKS buffers
+                }
+            } catch (IOException exception) { // If the file cannot be read or is corrupted
+                failure = exception;
+            } catch (InterruptedException exception) { // If the JVM is stopping
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Reading stopped before the end of the file"); // The reader must not take the rest of the file for the end of it
+            } finally {
+                filled.add(END);
+                release();
+            }
+        }
+
+        /**
+         * Method called by the reader and by the thread of READERS when they are done: the last one gives the buffers
+         * back to SPARE, when no one can use them anymore
+         */
+        private void release() {
+            if (users.decrementAndGet() == 0)
+                buffers.forEach(SPARE::offer); // The buffers that do not fit are left to the garbage collector
+        }
+
+        /**
+         * Method that makes sure that there is something to read in the current buffer
+         * @return False at the end of the file
+         * @throws IOException if the file cannot be decompressed
+         */
+        private boolean fill() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (current == END)
+                    return false;
+                if (current != null)
+                    empty.add(current); // Gives the buffer back to the decompression
+                try {
+                    current = filled.take();
+                } catch (InterruptedException exception) { // If the reader is interrupted
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (current == END && failure != null)
+                    throw failure;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? current.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int read = Math.min(length, current.remaining());
+            current.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true; // The reading stops at the next buffer
+            release();
+        }
+    }
+
+    /********************************** Used in a lot of methods ****************************************************/
+
+    private static final long CHUNK_SIZE = Math.max(1L << 20, Long.getLong("exam.chunkSize", 16L << 20)); // Files of at least two chunks are split and processed in parallel, at least 1 MiB so that a file never becomes thousands of tiny tasks
+
+    /**
+     * Method that checks whether a file is large enough to be split into chunks. Compressed files are never split,
+     * as their chunks could not be decompressed separately.
+     * @param file the file
+     * @return True or False
+     * @throws IOException if the size of the file cannot be read
+     */
+    private static boolean isLargeFile(Path file) throws IOException {
+        return !isCompressed(file) && Files.size(file) >= 2 * CHUNK_SIZE;
+    }
+
+    /**
+     * Method that splits a file into chunks of about CHUNK_SIZE bytes, each starting at the beginning of a line, and
+     * processes them as fork-join subtasks. When the calling task runs in a ForkJoinPool (like the pool of
+     * the fresh and shared modes of QueryExecutor) the chunks are processed by the same pool, otherwise by the common pool.
+     * The partial results are merged in the order of the chunks in the file.
+     *
+     * @param file     the file to process
+     * @param function computes the partial result of a chunk
+     * @param merge    merges the partial results of two consecutive chunks, it must be associative
+     * @param <T>      the type of the partial results
+     * @return the result of the whole file
+     * @throws IOException if the file cannot be read
+     */
+    private static <T> T processChunks(Path file, ChunkFunction<T> function, BinaryOperator<T> merge) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) { // Opens the file, shared by all the chunks
+            QueryStats stats = QueryStats.current(); // The chunks are counted in the statistics of the task of the file
+            return new ChunkTask<>(channel, splitIntoChunks(channel), 0, -1, (chunk, from, to) -> QueryStats.with(stats, () -> function.apply(chunk, from, to)), merge).invoke();
+        }
+    }
+
+    /**
+     * Method that finds the boundaries of the chunks of a file. Each boundary is the position right after a line
+     * terminator, so that no line and no "\r\n" is split between two chunks.
+     * @param channel the file
+     * @return the positions where the chunks start, followed by the size of the file
+     * @throws IOException if the file cannot be read
+     */
+    private static long[] splitIntoChunks(FileChannel channel) throws IOException {
+
+        long size = channel.size(); // Size of the file
+        List<Long> boundaries = new ArrayList<>(List.of(0L)); // The first chunk starts at the beginning of the file
+        ByteBuffer probe = ByteBuffer.allocate(1 << 16); // Used to search for the end of a line
+
+        long boundary = CHUNK_SIZE; // Where the next chunk would start if lines did not matter
+        search:
+        while (boundary < size) { // While the file has not been covered
+            for (long position = boundary; position < size; position += probe.limit()) { // Searches the next line terminator
+                probe.clear();
+                if (channel.read(probe, position) < 0)
+                    break search;
+                probe.flip();
+                for (int i = 0; i < probe.limit(); i++) {
+                    byte b = probe.get(i);
+                    if (b == '\n' || b == '\r') { // If a line terminator is found
+                        long next = position + i + 1; // The next line starts after it ...
+                        if (b == '\r' && next < size) { // ... unless it is the '\r' of a "\r\n"
+                            ByteBuffer following = ByteBuffer.allocate(1);
+                            channel.read(following, next);
+                            if (following.get(0) == '\n')
+                                next++;
+                        }
+                        if (next >= size) // If it is the end of the file, there is no other chunk
+                            break search;
+                        boundaries.add(next);
+                        boundary = next + CHUNK_SIZE; // Proceeds to the next chunk
+                        continue search;
+                    }
+                }
+            }
+            break; // The rest of the file is a single line
+        }
+        boundaries.add(size); // The last chunk ends at the end of the file
+
+        return boundaries.stream().mapToLong(Long::longValue).toArray(); // Returns the boundaries
+    }
+
+    /**
+     * Method that reads a range of a file and decodes it from UTF-8
+     * @param channel the file
+     * @param from the position of the first byte of the range
+     * @param to the position after the last byte of the range
+     * @return the text of the range
+     * @throws IOException if the file cannot be read or the range is not valid UTF-8
+     */
+    private static String readRange(FileChannel channel, long from, long to) throws IOException {
+
+        ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+        while (bytes.hasRemaining() && channel.read(bytes, from + bytes.position()) >= 0);
+
+        return StandardCharsets.UTF_8.newDecoder().decode(bytes.flip()).toString(); // Malformed input is reported, as by Files.lines()
+    }
+
+    /**
+     * Reads the lines of a text in segments of at most MAX_LINE_CHARS characters (-Dexam.maxLineChars, 1Mi by
+     * default), so that a line of several megabytes is never held in memory as a whole. A shorter line is a single
+     * segment. A longer one is cut after its last whitespace that is followed by a letter or a digit, which is a
+     * word boundary, so no word is split between segments, unless the whole segment is a single word.
+     * Lines end with '\n', '\r' or "\r\n", as in Files.lines(), and are counted in the statistics of the current query.
+     */
+    private static class LineSegmentReader implements Closeable {
+        private static final int MAX_LINE_CHARS = Math.max(64, Integer.getInteger("exam.maxLineChars", 1 << 20)); // the longest segment
+        private final Reader reader; // the decoded text
+        private final char[] buffer = new char[1 << 13]; // the characters read and not consumed yet
+        private int position = 0; // the next character of the buffer
+        private int limit = 0; // the end of the characters of the buffer
+        private final StringBuilder segment = new StringBuilder(); // the segment being read
+        private boolean endsLine = true; // whether the last segment returned by next() ends its line
+        private boolean afterCarriageReturn = false; // whether the last line ended with '\r', so that a following '\n' is part of its terminator
+        private boolean counted = true; // whether the lines are counted in the statistics
+
+        private LineSegmentReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Method that opens a text file, decompressing it if it is compressed, see readLines()
+         * @param file the file
+         * @return the reader of the lines of the file
+         * @throws IOException if the file cannot be opened
+         */
+        private static LineSegmentReader open(Path file) throws IOException {
+            return new LineSegmentReader(new InputStreamReader(PipelinedInputStream.open(file), StandardCharsets.UTF_8.newDecoder())); // Malformed input is reported, as by Files.lines()
+        }
+
+        /**
+         * Method that opens a range of a file, see readRange()
+         * @param channel the file, which is not closed by the reader
+         * @param from the position of the first byte of the range
+         * @param to the position after the last byte of the range
+         * @return the reader of the lines of the range
+         */
+        private static LineSegmentReader open(FileChannel channel, long from, long to) {
+            return new LineSegmentReader(new InputStreamReader(new RangeInputStream(channel, from, to), StandardCharsets.UTF_8.newDecoder()));
+        }
+
+        /**
+         * Method that reads the next segment
+         * @return the segment, without the line terminator, or null at the end of the text
+         * @throws IOException if the text cannot be read or is not valid UTF-8
+         */
+        private String next() throws IOException {
+            while (true) {
+                if (position == limit) { // If the buffer has been consumed
+                    int read = reader.read(buffer);
+                    if (read < 0) // At the end of the text, the last line may have no terminator
+                        return segment.length() == 0 && endsLine ? null : cut(segment.length(), true);
+                    position = 0;
+                    limit = read;
+                }
+                if (afterCarriageReturn) { // The '\n' of a "\r\n" terminator
+                    afterCarriageReturn = false;
+                    if (buffer[position] == '\n') {
+                        position++;
+                        continue;
+                    }
+                }
+
+                int end = position; // Looks for the end of the line, within the room left in the segment
+                int max = Math.min(limit, position + MAX_LINE_CHARS - segment.length());
+                while (end < max && buffer[end] != '\n' && buffer[end] != '\r')
+                    end++;
+                segment.append(buffer, position, end - position);
+                position = end;
+
+                if (end < max) { // If the line ends here
+                    afterCarriageReturn = buffer[end] == '\r';
+                    position++;
+                    return cut(segment.length(), true);
+                }
+                if (segment.length() == MAX_LINE_CHARS) // If the line is too long
+                    return cut(cutPoint(), false);
+            }
+        }
+
+        /**
+         * @return True if the last segment returned by next() ends its line
+         */
+        private boolean endsLine() {
+            return endsLine;
+        }
+
+        /**
+         * Method that finds where a full segment is cut: after the last whitespace followed by a letter or a digit,
+         * or at the end of the segment, but never between the two chars of a surrogate pair
+         * @return the length of the segment that is returned
+         */
+        private int cutPoint() {
+            for (int i = segment.length() - 2; i > 0; i--)
+                if (Character.isWhitespace(segment.charAt(i)) && Character.isLetterOrDigit(segment.charAt(i + 1)))
+                    return i + 1;
+            return Character.isHighSurrogate(segment.charAt(segment.length() - 1)) ? segment.length() - 1 : segment.length();
+        }
+
+        /**
+         * Method that returns the start of the segment being read and keeps the rest for the next segment
+         * @param length the length of the returned segment
+         * @param endsLine whether the returned segment ends its line
+         * @return the segment
+         */
+        private String cut(int length, boolean endsLine) {
+            String text = segment.substring(0, length);
+            segment.delete(0, length);
+            this.endsLine = endsLine;
+            if (endsLine && counted)
+                QueryStats.countLine();
+            return text;
+        }
+
+        /**
+         * Method that returns the segments as a stream, for the queries that only look at words and do not need to
+         * know where the lines end
+         * @return the segments, closing the stream closes the reader
+         */
+        private Stream<String> segments() {
+            return StreamSupport.stream(new Spliterators.AbstractSpliterator<String>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                @Override
+                public boolean tryAdvance(Consumer<? super String> action) {
+                    try {
+                        String next = next();
+                        if (next == null)
+                            return false;
+                        action.accept(next);
+                        return true;
+                    } catch (IOException exception) { // If the text cannot be read, as in Files.lines()
+                        throw new UncheckedIOException(exception);
+                    }
+                }
+            }, false).onClose(() -> {
+                try {
+                    close();
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        }
+
+        /**
+         * Method that counts the letters of each line, adding up the letters of its segments, see countChars()
+         * @param onLine receives the letters of each line, in order
+         * @throws IOException if the text cannot be read or is not valid UTF-8
+         */
+        private void countLetters(IntConsumer onLine) throws IOException {
+            int letters = 0; // The letters of the current line
+            for (String next = next(); next != null; next = next()) {
+                letters += countChars(next);
+                if (endsLine) {
+                    onLine.accept(letters);
+                    letters = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * The bytes of a range of a file, read with positional reads, so that the chunks of a file can share its channel.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel; // the file
+        private long position; // the position of the next byte
+        private final long end; // the position after the last byte of the range
+
+        private RangeInputStream(FileChannel channel, long from, long to) {
+            this.channel = channel;
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end)
+                return -1;
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read > 0)
+                position += read;
+            return read;
+        }
+    }
+
+    /**
+     * Method that counts the letters of a line given as a range of a file. A line longer than
+     * LineSegmentReader.MAX_LINE_CHARS bytes is decoded one segment at a time.
+     * @param channel the file
+     * @param from the position of the first byte of the line
+     * @param to the position of the line terminator
+     * @return the number of letters of the line
+     * @throws IOException if the file cannot be read or the line is not valid UTF-8
+     */
+    private static int countCharsOfRange(FileChannel channel, long from, long to) throws IOException {
+
+        if (to - from <= LineSegmentReader.MAX_LINE_CHARS)
+            return countChars(readRange(channel, from, to));
+
+        int[] letters = {0};
+        try (LineSegmentReader reader = LineSegmentReader.open(channel, from, to)) {
+            reader.counted = false; // The line is counted by the caller
+            reader.countLetters(chars -> letters[0] += chars); // The range is a single line
+        }
+        return letters[0];
+    }
+
+    /**
+     * Computes the partial result of a chunk of a file, used by processChunks().
+     * @param <T> the type of the partial result
+     */
+    @FunctionalInterface
+    private interface ChunkFunction<T> {
+        T apply(FileChannel channel, long from, long to) throws IOException;
+    }
+
+    /**
+     * Fork-join task that processes a range of chunks of a file by splitting it in halves.
+     * @param <T> the type of the partial results
+     */
+    private static class ChunkTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L; // a fork-join task is never serialised, but it is Serializable
+        private final FileChannel channel; // the file, read with positional reads so that it can be shared
+        private final long[] boundaries; // the boundaries of the chunks
+        private final int first; // the first chunk of the range
+        private final int last; // the chunk after the last one of the range
+        private final ChunkFunction<T> function; // computes the partial result of a chunk
+        private final BinaryOperator<T> merge; // merges the partial results of two consecutive ranges
+
+        private ChunkTask(FileChannel channel, long[] boundaries, int first, int last, ChunkFunction<T> function, BinaryOperator<T> merge) {
+            this.channel = channel;
+            this.boundaries = boundaries;
+            this.first = first;
+            this.last = last < 0 ? boundaries.length - 1 : last; // -1 stands for all the chunks
+            this.function = function;
+            this.merge = merge;
+        }
+
+        @Override
+        protected T compute() {
+
+            if (last - first == 1) { // If the range is a single chunk
+                try {
+                    return function.apply(channel, boundaries[first], boundaries[last]);
+                } catch (IOException exception) { // Checked exceptions cannot be thrown by compute()
+                    throw new UncheckedIOException(exception);
+                }
+            }
+
+            int middle = (first + last) >>> 1; // Splits the range in two halves
+            ChunkTask<T> left = new ChunkTask<>(channel, boundaries, first, middle, function, merge);
+            left.fork(); // The first half can be stolen by another thread
+            T right = new ChunkTask<>(channel, boundaries, middle, last, function, merge).compute(); // The second half is processed by this thread
+
+            return merge.apply(left.join(), right); // Merges them in the order of the file
+        }
+    }
+
+    /**
+     * Method that walks through a directory and its subdirectories in parallel, and gives each text file to a
+     * consumer as soon as it is found, so that the tasks of the files can run while the walk goes on. Each
+     * subdirectory is listed by a separate fork-join task of DirectoryWalk.POOL, and the attributes of each entry are
+     * read once, while the directory is listed: there is no further stat, except for symbolic links, whose
+     * target is read like Files.walk() and Files.isRegularFile() would.
+     * <p>
+     * The consumer is called by the threads of the walk, concurrently and in no particular order, with the attributes
+     * read by the listing (those of the target, for a symbolic link), so it does not have to read them again.
+     *
+     * @param dir    the directory to walk through
+     * @param stop   checked before each entry, the walk stops as soon as it returns true
+     * @param onFile receives the regular files ending with ".txt", see isTextFile(), and their attributes
+     * @return the number of files given to the consumer
+     * @throws IOException if a directory cannot be listed
+     */
+    private static long walkTextFiles(Path dir, BooleanSupplier stop, BiConsumer<Path, BasicFileAttributes> onFile) throws IOException {
+        AtomicLong files = new AtomicLong(0); // Number of files found so far
+        try {
+            DirectoryWalk.POOL.invoke(new DirectoryWalk(dir, stop, (file, attributes) -> {
+                onFile.accept(file, attributes);
+                files.incrementAndGet();
+            }));
+        } catch (UncheckedIOException exception) { // If a directory cannot be listed
+            throw exception.getCause();
+        }
+        return files.get(); // Returns the number of files
+    }
+
+    /**
+     * Fork-join task of walkTextFiles() that lists one directory: the text files are given to the consumer and each
+     * subdirectory is listed by a new subtask.
+     */
+    private static class DirectoryWalk extends RecursiveAction {
+        private static final long serialVersionUID = 1L; // a fork-join task is never serialised, but it is Serializable
+        private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("exam.walkThreads",
+                Math.max(4, Runtime.getRuntime().availableProcessors()))); // the threads of the walks, more than the processors as they mostly wait for the filesystem
+        private final Path dir; // the directory to list
+        private final BooleanSupplier stop; // whether the walk must stop
+        private final BiConsumer<Path, BasicFileAttributes> onFile; // receives the text files and their attributes
+
+        private DirectoryWalk(Path dir, BooleanSupplier stop, BiConsumer<Path, BasicFileAttributes> onFile) {
+            this.dir = dir;
+            this.stop = stop;
+            this.onFile = onFile;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryWalk> subdirectories = new ArrayList<>(); // Subtasks of the subdirectories
+            try {
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() { // Lists the directory with the attributes of its entries
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (stop.getAsBoolean()) // If the walk must stop
+                            return FileVisitResult.TERMINATE;
+                        if (attributes.isDirectory() && !file.equals(dir)) { // Lists the subdirectory in another task
+                            DirectoryWalk subdirectory = new DirectoryWalk(file, stop, onFile);
+                            subdirectory.fork();
+                            subdirectories.add(subdirectory);
+                        } else {
+                            BasicFileAttributes target = attributes.isSymbolicLink() ? targetAttributes(file) : attributes; // Links are followed to their target
+                            if (target != null && target.isRegularFile() && isTextFile(file)) // Checks whether is a regular txt file, or a compressed one
+                                onFile.accept(file, target);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException exception) { // If the directory cannot be listed
+                throw new UncheckedIOException(exception);
+            }
+            for (DirectoryWalk subdirectory : subdirectories) // Waits for the subdirectories
+                subdirectory.join();
+        }
+
+        /**
+         * Method that reads the attributes of the target of a symbolic link
+         * @param link the link
+         * @return the attributes of the target, or null if the link is broken, as Files.isRegularFile() would say
+         */
+        private static BasicFileAttributes targetAttributes(Path link) {
+            try {
+                return Files.readAttributes(link, BasicFileAttributes.class);
+            } catch (IOException exception) { // If the target does not exist
+                return null;
+            }
+        }
+    }
+
+    /********************************** Used in the scheduler ******************************************************/
+
+    /**
+     * Method that walks through a directory like walkTextFiles() and submits tasks for its text files, either in the
+     * order chosen by FileScheduler or, if bySize is false, one per file as soon as it is found. The walk and the
+     * submission run on a thread of FileTasks.SUBMITTERS, while the thread of the query takes the results with
+     * FileTasks.take(). A task may process several small files: it returns their results in a list, in no
+     * particular order, and it skips the files that are left as soon as stop returns true.
+     * <p>
+     * With -Dexam.dedup=true the files with the same content are scanned once, see ContentDedup: the result of
+     * each copy is made from the result of the file that has been scanned by copy, and returned with it.
+     *
+     * @param dir      the directory to walk through
+     * @param stop     checked before each entry and before each file of a task
+     * @param bySize   whether the tasks are scheduled by FileScheduler
+     * @param stats    the statistics of the query, which also report the schedule
+     * @param executor runs the tasks
+     * @param task     creates the task of a file
+     * @param copy     gives the result of a copy of a file from the result of the file, null if every copy must be scanned
+     * @param <T>      the type of the result of a file
+     * @return the tasks, which must be closed
+     */
+    private static <T> FileTasks<T> submitTextFiles(Path dir, BooleanSupplier stop, boolean bySize, QueryStats stats,
+                                                    ExecutorService executor, Function<Path, Callable<T>> task, BiFunction<T, Path, T> copy) {
+
+        FileTasks<T> tasks = new FileTasks<>(executor, stop, stats, task, copy);
+        boolean dedup = ContentDedup.ENABLED && copy != null; // Whether the copies are found before the tasks are submitted
+        tasks.start(() -> {
+            if (!bySize && !dedup) { // The tasks start during the walk, one per file, in the order in which they are found
+                walkTextFiles(dir, tasks::isStopped, (file, attributes) -> tasks.submit(List.of(new SizedFile(file, attributes.size()))));
+                return null;
+            }
+            Queue<SizedFile> files = new ConcurrentLinkedQueue<>(); // The files found by the threads of the walk
+            walkTextFiles(dir, tasks::isStopped, (file, attributes) -> files.add(new SizedFile(file, attributes.size())));
+            Collection<SizedFile> scanned = files; // The files that are scanned
+            if (dedup) {
+                ContentDedup copies = ContentDedup.of(files, stats, executor);
+                tasks.copies = copies.copies;
+                scanned = copies.unique;
+            }
+            if (!bySize) // In the order of the walk, one per file
+                for (SizedFile file : scanned)
+                    tasks.submit(List.of(file));
+            else
+                for (List<SizedFile> batch : FileScheduler.plan(scanned, stats)) // The tasks, the largest first
+                    tasks.submit(batch);
+            return null;
+        });
+        return tasks; // Returns the tasks, which are being submitted
+    }
+
+    /**
+     * The tasks of the files of a query. They are submitted by a thread of SUBMITTERS while the thread of the query
+     * takes their results, and each of them holds a reservation of the MemoryBudget of the query from its submission
+     * until its result has been taken: the walk blocks while too many files or bytes are in flight, and the results
+     * that have not been merged yet count against the budget instead of piling up in the completion queue.
+     * @param <T> the type of the result of a file
+     */
+    private static class FileTasks<T> {
+        private static final ExecutorService SUBMITTERS = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "exam-submit");
+            thread.setDaemon(true); // The submission never keeps the JVM alive
+            return thread;
+        }); // the threads that walk through the directories and submit the tasks
+        private final ExecutorCompletionService<List<T>> completionService; // receives the tasks, and the end of the submission
+        private final BooleanSupplier stop; // the stop signal of the query
+        private final QueryStats stats; // the statistics of the query
+        private final Function<Path, Callable<T>> task; // creates the task of a file
+        private final BiFunction<T, Path, T> copy; // gives the result of a copy of a file, null if the copies are scanned
+        private Map<Path, List<Path>> copies = Map.of(); // the copies of each file that is scanned, only used by the submission
+        private final MemoryBudget budget = new MemoryBudget(); // limits the files and bytes in flight
+        private final Map<Future<List<T>>, int[]> reservations = new HashMap<>(); // the tasks whose result has not been taken, and their reservation
+        private volatile boolean closed = false; // whether the query no longer needs the tasks
+        private Future<?> submission; // the walk and the submission
+        private boolean submitted = false; // whether all the tasks have been submitted, only used by the thread of the query
+
+        private FileTasks(ExecutorService executor, BooleanSupplier stop, QueryStats stats, Function<Path, Callable<T>> task, BiFunction<T, Path, T> copy) {
+            this.completionService = new ExecutorCompletionService<>(executor);
+            this.stop = stop;
+            this.stats = stats;
+            this.task = task;
+            this.copy = copy;
+        }
+
+        /**
+         * Method that starts the submission on a thread of SUBMITTERS
+         * @param walk walks through the directory and submits the tasks
+         */
+        private void start(Callable<Void> walk) {
+            submission = SUBMITTERS.submit(() -> {
+                try {
+                    return walk.call();
+                } finally {
+                    synchronized (this) {
+                        if (!closed)
+                            completionService.submit(() -> null); // The only task without a reservation marks the end of the submission
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return True if the walk and the tasks must stop
+         */
+        private boolean isStopped() {
+            return closed || stop.getAsBoolean();
+        }
+
+        /**
+         * Method that submits the task of a batch of files, which runs the tasks of its files one after the other on
+         * the same thread, each one followed by the results of its copies. It blocks until the budget has room for
+         * the batch.
+         * @param files the files of the batch
+         */
+        private void submit(List<SizedFile> files) {
+
+            int[] reservation = budget.reserve(files); // Blocks while the budget is full
+            List<Callable<T>> tasks = new ArrayList<>(files.size()); // The tasks of the files, tracked as soon as they are submitted
+            List<List<Path>> copiesOfFiles = new ArrayList<>(files.size()); // The copies of each file, which are not scanned
+            for (SizedFile file : files) {
+                tasks.add(stats.track(file.path, file.size, task.apply(file.path)));
+                copiesOfFiles.add(copies.getOrDefault(file.path, List.of()));
+            }
+
+            synchronized (this) { // The reservation is recorded before the result can be taken
+                if (closed)
+                    return;
+                reservations.put(completionService.submit(() -> {
+                    List<T> results = new ArrayList<>(tasks.size()); // May contain null, like the result of a single file
+                    for (int i = 0; i < tasks.size(); i++) {
+                        if (isStopped()) // If the query is done, the other files are not needed
+                            break;
+                        T result = tasks.get(i).call();
+                        results.add(result);
+                        for (Path copyOfFile : copiesOfFiles.get(i)) // As if each copy had been scanned
+                            results.add(result == null ? null : copy.apply(result, copyOfFile));
+                    }
+                    return results;
+                }), reservation);
+            }
+        }
+
+        /**
+         * Method that waits for the next completed task and returns its results, giving its reservation back to
+         * the budget
+         * @return the results of the files of the task, or null if all the tasks have been taken
+         * @throws InterruptedException if the thread is interrupted while waiting
+         * @throws ExecutionException if the task failed
+         * @throws IOException if a directory cannot be listed, once all the tasks of the other files have been taken
+         */
+        private List<T> take() throws InterruptedException, ExecutionException, IOException {
+            while (true) {
+                int[] reservation;
+                synchronized (this) {
+                    if (submitted && reservations.isEmpty()) // If all the tasks have been taken
+                        return null;
+                }
+                Future<List<T>> next = stats.take(completionService);
+                synchronized (this) {
+                    reservation = reservations.remove(next);
+                }
+                if (reservation != null) {
+                    budget.release(reservation);
+                    return next.get(); // Returns the results of the task
+                }
+
+                submitted = true; // The end of the submission
+                stats.startPhase("merge"); // The walk is over, only the results are left
+                try {
+                    submission.get();
+                } catch (ExecutionException exception) { // If the walk failed
+                    if (exception.getCause() instanceof IOException)
+                        throw (IOException) exception.getCause();
+                    throw exception;
+                }
+            }
+        }
+
+        /**
+         * Method that stops the walk and cancels the tasks that have not started yet, when the query no longer
+         * needs them. The tasks that are running stop at their next file.
+         */
+        private void close() {
+            closed = true;
+            budget.close(); // Unblocks the submission
+            synchronized (this) {
+                reservations.keySet().forEach(task -> task.cancel(false)); // Running tasks are not interrupted, as that would close the file they are reading
+            }
+            try {
+                submission.get(); // Waits for the end of the submission, so that no task is submitted after the executor has been shut down
+            } catch (ExecutionException exception) { // The error of the walk has been thrown by take(), or the query stopped before needing the other files
+            } catch (InterruptedException exception) { // If an error occurs
+                exception.printStackTrace(); // Prints the error
+            }
+        }
+    }
+
+    /**
+     * Limits the files and bytes of a query that are in flight: submitted to the executor and not yet taken by the
+     * thread of the query. -Dexam.maxInFlightFiles sets the files (1024 by default), -Dexam.maxInFlightBytes the
+     * bytes (a quarter of the maximum heap by default). A batch larger than the whole budget waits until nothing
+     * else is in flight. The bytes are counted in KiB, so that the permits of a Semaphore are enough.
+     */
+    private static class MemoryBudget {
+        private static final int MAX_FILES = Math.max(1, Integer.getInteger("exam.maxInFlightFiles", 1024)); // the files in flight
+        private static final int MAX_KIB = (int) Math.max(1, Math.min(1 << 30,
+                Long.getLong("exam.maxInFlightBytes", Runtime.getRuntime().maxMemory() / 4) >> 10)); // the KiB in flight
+        private final Semaphore files = new Semaphore(MAX_FILES, true); // the files that can still be submitted
+        private final Semaphore kibibytes = new Semaphore(MAX_KIB, true); // the KiB that can still be submitted, fair so that a large file is not overtaken forever
+
+        /**
+         * Method that reserves room for a batch of files, blocking until the budget has enough. The files are
+         * reserved before the bytes, always in this order, so two reservations never wait for each other.
+         * @param batch the files
+         * @return the reservation, to be released with release()
+         */
+        private int[] reserve(List<SizedFile> batch) {
+            long bytes = 0;
+            for (SizedFile file : batch)
+                bytes += file.cost;
+            int[] reservation = {Math.min(batch.size(), MAX_FILES), (int) Math.min(MAX_KIB, Math.max(1, (bytes + 1023) >> 10))};
+            files.acquireUninterruptibly(reservation[0]);
+            kibibytes.acquireUninterruptibly(reservation[1]);
+            return reservation;
+        }
+
+        /**
+         * Method that gives a reservation back to the budget
+         * @param reservation the files and KiB reserved by reserve()
+         */
+        private void release(int[] reservation) {
+            files.release(reservation[0]);
+            kibibytes.release(reservation[1]);
+        }
+
+        /**
+         * Method that lifts the limits, so that the threads waiting in reserve() go on and see that the query is over
+         */
+        private void close() {
+            files.release(Integer.MAX_VALUE - MAX_FILES);
+            kibibytes.release(Integer.MAX_VALUE - MAX_KIB);
+        }
+    }
+
+    /**
+     * Orders and groups the files of a query before their tasks are submitted, so that the executor is neither slowed
+     * down by the overhead of thousands of tiny tasks nor left with a single large file at the end of the query:
+     * <ul>
+     *     <li>the files smaller than -Dexam.batchBytes (1 MiB by default) are packed together into tasks of at
+     *     most that many bytes and -Dexam.batchFiles files (256 by default)</li>
+     *     <li>the tasks are submitted from the largest to the smallest one (longest processing time first), so the
+     *     large files start immediately and the small batches fill the gaps at the end</li>
+     * </ul>
+     * The tasks can only be ordered once the whole directory has been walked. With -Dexam.schedule=walk every file
+     * has its own task instead, submitted as soon as it is found, as before. That is the default when the executor
+     * has a single thread (-Dexam.threads=1 or a single processor): there is no tail to shorten, and the scan of the
+     * first files overlaps the walk. -Dexam.schedule=size forces the schedule by size.
+     * The schedule is reported with the other statistics (-Dexam.stats=true).
+     */
+    private static class FileScheduler {
+        private static final boolean BY_SIZE = "size".equals(System.getProperty("exam.schedule", QueryExecutor.THREADS > 1 ? "size" : "walk")); // whether the tasks are ordered by size
+        private static final long BATCH_BYTES = Long.getLong("exam.batchBytes", 1L << 20); // the maximum bytes of a batch of small files
+        private static final int BATCH_FILES = Integer.getInteger("exam.batchFiles", 256); // the maximum files of a batch
+        private static final int COMPRESSION_RATIO = 4; // estimated ratio of a .txt.gz file, whose text is longer than its size
+
+        /**
+         * Method that groups the files into batches and orders them, the largest first
+         * @param files the files of the query
+         * @param stats the statistics of the query, which report the schedule
+         * @return the files of each task, in the order in which they must be submitted
+         */
+        private static List<List<SizedFile>> plan(Collection<SizedFile> files, QueryStats stats) {
+
+            List<SizedFile> bySize = new ArrayList<>(files);
+            bySize.sort(SizedFile.LARGEST_FIRST);
+
+            List<List<SizedFile>> batches = new ArrayList<>(); // The tasks, the largest first
+            List<Long> batchBytes = new ArrayList<>(); // The estimated bytes of each task
+            int alone = 0; // Number of files large enough to have their own task
+            List<SizedFile> batch = new ArrayList<>(); // The batch being filled
+            long bytes = 0; // The bytes of the batch being filled
+            for (SizedFile file : bySize) {
+                if (file.cost >= BATCH_BYTES) { // Large enough to have its own task
+                    batches.add(List.of(file));
+                    batchBytes.add(file.cost);
+                    alone++;
+                    continue;
+                }
+                if (!batch.isEmpty() && (bytes + file.cost > BATCH_BYTES || batch.size() == BATCH_FILES)) { // The batch is full
+                    batches.add(batch);
+                    batchBytes.add(bytes);
+                    batch = new ArrayList<>();
+                    bytes = 0;
+                }
+                batch.add(file);
+                bytes += file.cost;
+            }
+            if (!batch.isEmpty()) { // The last batch
+                batches.add(batch);
+                batchBytes.add(bytes);
+            }
+
+            // The batches are filled with decreasing sizes, so a batch of small files can hold more bytes than the
+            // batch before it: they are sorted again by their total, the largest first
+            Integer[] order = new Integer[batches.size()];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, alone, order.length, Comparator.comparingLong(i -> -batchBytes.get(i))); // The tasks of single files are already ordered
+            List<List<SizedFile>> ordered = new ArrayList<>(batches.size());
+            for (int i : order)
+                ordered.add(batches.get(i));
+
+            stats.scheduled(String.format(Locale.ROOT, "%d files in %d tasks, %d large files alone, %d batches of at most %d bytes or %d files, largest task %d bytes, smallest %d bytes",
+                    bySize.size(), ordered.size(), alone, ordered.size() - alone, BATCH_BYTES, BATCH_FILES,
+                    batchBytes.isEmpty() ? 0 : Collections.max(batchBytes), batchBytes.isEmpty() ? 0 : Collections.min(batchBytes)));
+
+            return ordered; // Returns the tasks
+        }
+    }
+
+    /**
+     * The files of a query with the same content, found with -Dexam.dedup=true before the tasks are submitted, so that
+     * each content is scanned once: the files are grouped by size, the first PREFIX_BYTES of the files that share
+     * their size with another one are hashed by the executor of the query, and only the files with the same size and
+     * the same hash of their prefix are compared byte by byte, so a collision of the hash never merges different files.
+     * In each group of identical files the first one in the order of the paths is scanned, and the query makes the
+     * results of the others from its result (see submitTextFiles()), so the results name every path, and longestLine
+     * still breaks ties between the copies by their path. Files of a unique size are not read. The saved bytes and the
+     * bytes read to find the copies are reported with the other statistics.
+     */
+    private static class ContentDedup {
+        private static final boolean ENABLED = Boolean.getBoolean("exam.dedup"); // whether the copies are scanned once
+        private static final int PREFIX_BYTES = 1 << 12; // the bytes hashed at the start of a file, a block of most filesystems
+        private final List<SizedFile> unique = new ArrayList<>(); // the files that are scanned
+        private final Map<Path, List<Path>> copies = new HashMap<>(); // the copies of each file that is scanned, which are not scanned
+        private long readBytes = 0; // the bytes of the files read to find the copies, each byte counted once
+        private long savedBytes = 0; // the bytes of the copies, which are not scanned
+
+        /**
+         * Method that finds the copies among the files of a query
+         * @param files the files
+         * @param stats the statistics of the query, which report the copies
+         * @param executor the executor of the query, which hashes and compares the files
+         * @return the files to scan and their copies
+         * @throws InterruptedException if the thread is interrupted while waiting for the executor
+         */
+        private static ContentDedup of(Collection<SizedFile> files, QueryStats stats, ExecutorService executor) throws InterruptedException {
+
+            ContentDedup dedup = new ContentDedup();
+            Map<Long, List<SizedFile>> bySize = new HashMap<>(); // The files of each size
+            for (SizedFile file : files)
+                bySize.computeIfAbsent(file.size, size -> new ArrayList<>(1)).add(file);
+
+            List<List<SizedFile>> sameSizes = new ArrayList<>(); // The groups of files of the same size
+            Map<SizedFile, Future<Long>> prefixes = new HashMap<>(); // The hash of the prefix of each file of these groups
+            for (List<SizedFile> sameSize : bySize.values()) {
+                if (sameSize.size() == 1) { // A file of a unique size has no copy, and is not read
+                    dedup.unique.addAll(sameSize);
+                    continue;
+                }
+                sameSize.sort(Comparator.comparing(file -> file.path)); // The first path of each group is scanned
+                sameSizes.add(sameSize);
+                for (SizedFile file : sameSize)
+                    prefixes.put(file, executor.submit(() -> prefixHash(file.path)));
+            }
+
+            List<Future<ContentDedup>> groups = new ArrayList<>(); // The files of the same size and prefix, compared by the executor
+            for (List<SizedFile> sameSize : sameSizes) {
+                Map<Long, List<SizedFile>> byPrefix = new LinkedHashMap<>(); // The files of the same size with the same hash of their prefix
+                for (SizedFile file : sameSize) {
+                    try {
+                        long hash = prefixes.get(file).get();
+                        dedup.readBytes += Math.min(file.size, PREFIX_BYTES);
+                        byPrefix.computeIfAbsent(hash, h -> new ArrayList<>(1)).add(file);
+                    } catch (ExecutionException exception) { // If the file cannot be read, its task reports the error
+                        dedup.unique.add(file);
+                    }
+                }
+                for (List<SizedFile> samePrefix : byPrefix.values()) {
+                    if (samePrefix.size() == 1) // The prefix of the file differs from the others, it is not read again
+                        dedup.unique.addAll(samePrefix);
+                    else
+                        groups.add(executor.submit(() -> compare(samePrefix)));
+                }
+            }
+
+            for (Future<ContentDedup> group : groups) { // Merges the groups, in the order of their sizes
+                try {
+                    ContentDedup compared = group.get();
+                    dedup.unique.addAll(compared.unique);
+                    dedup.copies.putAll(compared.copies);
+                    dedup.readBytes += compared.readBytes;
+                    dedup.savedBytes += compared.savedBytes;
+                } catch (ExecutionException exception) { // Cannot happen, compare() handles the errors of each file
+                    exception.printStackTrace(); // Prints the error
+                }
+            }
+
+            stats.deduplicated(String.format(Locale.ROOT, "%d copies of %d files not scanned, %d bytes saved, %d bytes read to find them",
+                    dedup.copies.values().stream().mapToInt(List::size).sum(), dedup.copies.size(), dedup.savedBytes, dedup.readBytes));
+            return dedup; // Returns the files to scan and their copies
+        }
+
+        /**
+         * Method that hashes the prefix of a file
+         * @param file the file
+         * @return the CRC-32C of the first PREFIX_BYTES of the file
+         * @throws IOException if the file cannot be read
+         */
+        private static long prefixHash(Path file) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(PREFIX_BYTES);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                int read = 0; // -1 at the end of the file
+                while (buffer.hasRemaining() && read >= 0) // Until the prefix is read, or the end of the file
+                    read = channel.read(buffer);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.flip());
+            return crc.getValue();
+        }
+
+        /**
+         * Method that compares the files of the same size and the same hash of their prefix, byte by byte
+         * @param samePrefix the files, in the order of their paths
+         * @return the files of the group to scan and their copies, with the bytes read past the prefixes
+         */
+        private static ContentDedup compare(List<SizedFile> samePrefix) {
+            ContentDedup group = new ContentDedup();
+            List<SizedFile> originals = new ArrayList<>(1); // The files of the group with different contents, which are scanned
+            for (SizedFile file : samePrefix) {
+                group.readBytes += Math.max(0, file.size - PREFIX_BYTES); // Every file of the group is read once to the end
+                try {
+                    group.addIfUnique(file, originals);
+                } catch (IOException exception) { // If the file cannot be read, its task reports the error
+                    group.unique.add(file);
+                }
+            }
+            return group;
+        }
+
+        /**
+         * Method that compares a file with the files of the same size and prefix that are scanned
+         * @param file the file
+         * @param originals the files of the same size and prefix that are scanned, which the file is added to if it is not a copy
+         * @throws IOException if the file cannot be read
+         */
+        private void addIfUnique(SizedFile file, List<SizedFile> originals) throws IOException {
+            for (SizedFile original : originals) {
+                if (Files.mismatch(original.path, file.path) == -1) { // If the content is the same
+                    copies.computeIfAbsent(original.path, path -> new ArrayList<>(1)).add(file.path);
+                    savedBytes += file.size;
+                    return;
+                }
+            }
+            originals.add(file);
+            unique.add(file);
+        }
+    }
+
+    /**
+     * A file found by the walk and its estimated cost in bytes of text, from the size listed by the walk, so the file is not read again.
+     */
+    private static class SizedFile {
+        private static final Comparator<SizedFile> LARGEST_FIRST = Comparator.<SizedFile>comparingLong(file -> -file.cost).thenComparing(file -> file.path);
+        private final Path path; // the file
+        private final long size; // the size of the file, as listed by the walk
+        private final long cost; // the size of the file, multiplied by FileScheduler.COMPRESSION_RATIO if it is compressed
+
+        private SizedFile(Path path, long size) {
+            this.path = path;
+            this.size = size;
+            this.cost = isCompressed(path) ? size * FileScheduler.COMPRESSION_RATIO : size;
+        }
+    }
+
+    /**
+     * The executors that run the tasks of the queries. The mode is chosen with -Dexam.executor or with
+     * QueryExecutor.setMode():
+     * <ul>
+     *     <li>fresh (the default): a new Executors.newWorkStealingPool() for every query</li>
+     *     <li>shared: one ForkJoinPool shared by all the queries of the JVM, for CPU-bound tokenizing</li>
+     *     <li>virtual: a virtual thread per file, for I/O-bound scans (for example on network filesystems). Virtual
+     *     threads need Java 21; on older versions the tasks run on a pool of -Dexam.threads platform threads instead</li>
+     *     <li>custom: an ExecutorService supplied by the caller with QueryExecutor.use(), which is never shut down</li>
+     * </ul>
+     * The number of threads of fresh and shared is -Dexam.threads, by default the number of available processors.
+     */
+    private static class QueryExecutor {
+        private static final int THREADS = Integer.getInteger("exam.threads", Runtime.getRuntime().availableProcessors()); // threads of the platform pools
+        private static volatile String mode = System.getProperty("exam.executor", "fresh"); // the current mode
+        private static volatile ExecutorService custom = null; // the executor supplied by the caller
+        private static ExecutorService shared = null; // the shared pool, created when first needed
+        private static boolean warnedVirtual = false; // whether the missing virtual threads have been reported
+
+        /**
+         * Method that sets the mode of the executors of the next queries
+         * @param newMode fresh, shared, virtual or custom
+         */
+        private static void setMode(String newMode) {
+            checkArguments(Arrays.asList("fresh", "shared", "virtual", "custom").contains(newMode),
+                    "The executor must be fresh, shared, virtual or custom, not " + newMode);
+            mode = newMode;
+        }
+
+        /**
+         * Method that makes the next queries run their tasks on an executor supplied by the caller
+         * @param executor the executor, which is not shut down by the queries
+         */
+        private static void use(ExecutorService executor) {
+            custom = Objects.requireNonNull(executor);
+            mode = "custom";
+        }
+
+        /**
+         * Method that opens the executor of a query. Shutting it down and awaiting its termination waits for the tasks
+         * of the query only, so a query never leaves tasks behind, even on an executor that is shared.
+         * @return the executor of the query
+         */
+        private static ExecutorService open() {
+            switch (mode) {
+                case "shared":
+                    return new TaskScope(sharedPool(), false);
+                case "virtual":
+                    return new TaskScope(newVirtualThreadPerTaskExecutor(), true);
+                case "custom":
+                    checkArguments(custom != null, "No executor has been supplied with QueryExecutor.use()");
+                    return new TaskScope(custom, false);
+                default:
+                    return new TaskScope(Executors.newWorkStealingPool(THREADS), true);
+            }
+        }
+
+        /**
+         * @return the pool shared by all the queries, its threads are daemons and do not keep the JVM alive
+         */
+        private static synchronized ExecutorService sharedPool() {
+            if (shared == null)
+                shared = Executors.newWorkStealingPool(THREADS);
+            return shared;
+        }
+
+        /**
+         * Method that creates an executor that starts a virtual thread for each task. Exam is compiled for Java 17, so
+         * Executors.newVirtualThreadPerTaskExecutor() is looked up at runtime. Without virtual threads, the tasks run on
+         * a pool of THREADS daemon threads, so a large directory never starts a thread per file.
+         * @return the executor
+         */
+        private static synchronized ExecutorService newVirtualThreadPerTaskExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException exception) { // If virtual threads are not available
+                if (!warnedVirtual) {
+                    System.err.println("Virtual threads are not available in Java " + Runtime.version().feature() + ", using a pool of platform threads (exam.threads=" + THREADS + ")");
+                    warnedVirtual = true;
+                }
+                return Executors.newFixedThreadPool(THREADS, task -> {
+                    Thread thread = new Thread(task);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
+
+    /**
+     * The executor of a single query, which runs its tasks on another executor. After shutdown(), awaitTermination()
+     * waits until all the tasks submitted through this executor have completed, and then shuts down the other
+     * executor if it belongs to the query.
+     */
+    private static class TaskScope extends AbstractExecutorService {
+        private final ExecutorService executor; // the executor that runs the tasks
+        private final boolean owned; // whether the executor belongs to this query
+        private int running = 0; // tasks submitted that have not completed yet
+        private boolean shutdown = false; // whether new tasks are rejected
+
+        private TaskScope(ExecutorService executor, boolean owned) {
+            this.executor = executor;
+            this.owned = owned;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (shutdown)
+                    throw new RejectedExecutionException("The query is over");
+                running++;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        completed();
+                    }
+                });
+            } catch (RejectedExecutionException exception) { // If the other executor has been shut down
+                completed();
+                throw exception;
+            }
+        }
+
+        /**
+         * Method called when a task has completed
+         */
+        private synchronized void completed() {
+            if (--running == 0)
+                notifyAll(); // Wakes up awaitTermination()
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            if (owned)
+                executor.shutdownNow(); // Interrupts the tasks, only if no other query uses the executor
+            return Collections.emptyList();
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && running == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (!shutdown || running > 0) { // Waits for the tasks of the query
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+            if (owned) { // No other query uses the executor
+                executor.shutdown();
+                return executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Kernels that count ASCII letters and vowels several characters at a time (SWAR, SIMD within a register): 8 bytes
+     * or 4 chars are loaded in a long and tested with a few arithmetic operations, with no branch per character.
+     * They give the same results as the Unicode-correct methods (countCharsWithBreakIterator() and countVowels()) on
+     * ASCII text, and report non-ASCII text so that the callers can use the Unicode-correct methods instead.
+     * <p>
+     * The Vector API would need --add-modules jdk.incubator.vector on every command line, which method main cannot
+     * require, so the kernels use plain long arithmetic, which the JIT compiles on every platform.
+     */
+    private static class AsciiKernels {
+        private static final long ONES = 0x0101010101010101L; // 1 in each byte
+        private static final long HIGHS = 0x8080808080808080L; // the high bit of each byte
+        private static final long CHAR_ONES = 0x0001000100010001L; // 1 in each char
+        private static final long CHAR_HIGHS = 0x8000800080008000L; // the high bit of each char
+        private static final long CHAR_LOWS = 0x7FFF7FFF7FFF7FFFL; // all the bits of each char but the high one
+        private static final long CHAR_NOT_ASCII = 0xFF80FF80FF80FF80L; // the bits of each char that are set only if it is not ASCII
+        private static final long[] VOWELS = {'a' * CHAR_ONES, 'e' * CHAR_ONES, 'i' * CHAR_ONES, 'o' * CHAR_ONES, 'u' * CHAR_ONES}; // each vowel in each char
+
+        /**
+         * Method that checks whether 8 bytes contain a line terminator or a byte that is not ASCII
+         * @param bytes the bytes
+         * @return True or False
+         */
+        private static boolean hasLineBreakOrNonAscii(long bytes) {
+            return (bytes & HIGHS) != 0 || hasZeroByte(bytes ^ '\n' * ONES) || hasZeroByte(bytes ^ '\r' * ONES);
+        }
+
+        /**
+         * @param bytes 8 bytes
+         * @return True if one of the bytes is 0
+         */
+        private static boolean hasZeroByte(long bytes) {
+            return ((bytes - ONES) & ~bytes & HIGHS) != 0;
+        }
+
+        /**
+         * Method that counts the ASCII letters, in uppercase or lowercase, among 8 ASCII bytes
+         * @param bytes the bytes, none of them has the high bit set
+         * @return the number of letters
+         */
+        private static int countLetters(long bytes) {
+            long lower = bytes | 0x20 * ONES; // Folds the letters to lowercase
+            long atLeastA = lower + (0x80 - 'a') * ONES; // The high bit of a byte is set if it is at least 'a'
+            long afterZ = lower + (0x80 - 'z' - 1) * ONES; // The high bit of a byte is set if it is after 'z'
+            return Long.bitCount(atLeastA & ~afterZ & HIGHS);
+        }
+
+        /**
+         * Method that counts the ASCII letters, in uppercase or lowercase, among 4 ASCII chars
+         * @param chars the chars, 16 bits each
+         * @return the number of letters
+         */
+        private static int countLetterChars(long chars) {
+            long lower = chars | 0x20 * CHAR_ONES; // Folds the letters to lowercase
+            long atLeastA = lower + (0x8000 - 'a') * CHAR_ONES; // The high bit of a char is set if it is at least 'a'
+            long afterZ = lower + (0x8000 - 'z' - 1) * CHAR_ONES; // The high bit of a char is set if it is after 'z'
+            return Long.bitCount(atLeastA & ~afterZ & CHAR_HIGHS);
+        }
+
+        /**
+         * Method that counts the vowels (lowercase a, e, i, o and u, as checkIfVowel()) among 4 chars
+         * @param chars the chars, 16 bits each
+         * @return the number of vowels
+         */
+        private static int countVowelChars(long chars) {
+            int count = 0;
+            for (long vowel : VOWELS) {
+                long difference = chars ^ vowel; // A char is 0 if it is the vowel
+                count += Long.bitCount(~(((difference & CHAR_LOWS) + CHAR_LOWS) | difference) & CHAR_HIGHS); // The high bit of each char that is 0
+            }
+            return count;
+        }
+
+        /**
+         * @param text some chars
+         * @param i the index of the first of 4 chars
+         * @return the 4 chars packed in a long
+         */
+        private static long pack(char[] text, int i) {
+            return text[i] | (long) text[i + 1] << 16 | (long) text[i + 2] << 32 | (long) text[i + 3] << 48;
+        }
+
+        /**
+         * @param text some chars
+         * @param i the index of the first of 4 chars
+         * @return the 4 chars packed in a long
+         */
+        private static long pack(String text, int i) {
+            return text.charAt(i) | (long) text.charAt(i + 1) << 16 | (long) text.charAt(i + 2) << 32 | (long) text.charAt(i + 3) << 48;
+        }
+
+        /**
+         * Method that counts the letters of a line made only of ASCII characters
+         * @param line the line
+         * @return the number of letters, or -1 if the line contains characters that are not ASCII
+         */
+        private static int countLetters(String line) {
+            int count = 0;
+            int i = 0;
+            for (; i + 4 <= line.length(); i += 4) { // 4 chars at a time
+                long chars = pack(line, i);
+                if ((chars & CHAR_NOT_ASCII) != 0)
+                    return -1;
+                count += countLetterChars(chars);
+            }
+            for (; i < line.length(); i++) { // The last chars
+                char c = line.charAt(i);
+                if (c >= 0x80)
+                    return -1;
+                if ((c | 0x20) >= 'a' && (c | 0x20) <= 'z')
+                    count++;
+            }
+            return count;
+        }
+
+        /**
+         * Method that counts the vowels of a word, as countVowels() does
+         * @param text the characters of the word are text[from..to)
+         * @param from the start of the word
+         * @param to the end of the word
+         * @return the number of vowels
+         */
+        private static int countVowels(char[] text, int from, int to) {
+            int count = 0;
+            int i = from;
+            for (; i + 4 <= to; i += 4) // 4 chars at a time
+                count += countVowelChars(pack(text, i));
+            for (; i < to; i++) // The last chars
+                if (checkIfVowel(text[i]))
+                    count++;
+            return count;
+        }
+    }
+
+    /**
+     * Method that checks that the kernels of AsciiKernels give the same results as the Unicode-correct methods, on the
+     * lines of the text files of a directory and on the words of those lines, and measures both
+     * @param dir the directory containing the reference corpus
+     * @return the number of lines or words where the results differ
+     */
+    private static long checkKernels(Path dir) {
+
+        List<String> lines = new ArrayList<>(); // The lines of the corpus
+        try {
+            for (Path file : listTextFiles(dir).keySet())
+                try (Stream<String> fileLines = readLines(file)) {
+                    fileLines.forEach(lines::add);
+                } catch (UncheckedIOException exception) { // If the file is not valid UTF-8, it is not part of the reference
+                    System.err.println("Skipped " + file + ": " + exception.getCause());
+                }
+        } catch (IOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+        List<String> words = new ArrayList<>(); // The words of the corpus
+        lines.forEach(line -> words.addAll(extractWords(line)));
+
+        long mismatches = 0; // Number of lines or words where the kernels are wrong
+        for (String line : lines)
+            if (countChars(line) != countCharsWithBreakIterator(line)) {
+                mismatches++;
+                System.out.println("Letters differ: " + line);
+            }
+        for (String word : words)
+            if (AsciiKernels.countVowels(word.toCharArray(), 0, word.length()) != countVowels(word)) {
+                mismatches++;
+                System.out.println("Vowels differ: " + word);
+            }
+        System.out.println(lines.size() + " lines and " + words.size() + " words checked, " + mismatches + " mismatches");
+
+        long bytes = lines.stream().mapToLong(String::length).sum(); // Characters of the corpus
+        char[][] wordChars = words.stream().map(String::toCharArray).toArray(char[][]::new);
+        System.out.println(String.format(Locale.ROOT, "%-28s %10s %10s", "kernel", "ms", "Mchars/s"));
+        long letters = timeKernel("letters, BreakIterator", bytes, () -> lines.stream().mapToLong(Exam::countCharsWithBreakIterator).sum());
+        if (letters != timeKernel("letters, ASCII kernel", bytes, () -> lines.stream().mapToLong(Exam::countChars).sum()))
+            mismatches++;
+        long wordBytes = words.stream().mapToLong(String::length).sum(); // Characters of the words
+        long vowels = timeKernel("vowels, scalar", wordBytes, () -> words.stream().mapToLong(Exam::countVowels).sum());
+        if (vowels != timeKernel("vowels, ASCII kernel", wordBytes, () -> Arrays.stream(wordChars).mapToLong(w -> AsciiKernels.countVowels(w, 0, w.length)).sum()))
+            mismatches++;
+
+        return mismatches; // Returns the number of mismatches
+    }
+
+    /**
+     * Method used in checkKernels() that measures a kernel: the best of 5 runs after 3 runs that warm up the JIT
+     * @param name the name of the kernel
+     * @param chars the number of characters processed by a run
+     * @param run a run of the kernel over the whole corpus, returning the total count
+     * @return the total count, which the caller compares between kernels
+     */
+    private static long timeKernel(String name, long chars, LongSupplier run) {
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < 8; i++) {
+            long start = System.nanoTime();
+            total = run.getAsLong();
+            if (i >= 3) // The first runs warm up the JIT
+                best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-28s %10.1f %10.1f", name, best / 1e6, chars / 1e6 / (best / 1e9)));
+        return total;
+    }
 
     /**
-     * Method that uses BreakIterator to find all the words of the line that is given as a parameter
+     * Method that finds all the words of the line that is given as a parameter, in lowercase.
+     * The words are found by the WordTokenizer of the current thread.
      *
      * @param line The String that we want to find the words
      * @return a List<String> containing the words
      */
     private static List<String> extractWords(String line) {
+        return WordTokenizer.of(line).words(); // Returns the split words
+    }
+
+    /**
+     * Method that uses a new BreakIterator to find all the words of the line that is given as a parameter.
+     * This is the original implementation of extractWords(), kept as the reference for checkTokenizer().
+     *
+     * @param line The String that we want to find the words
+     * @return a List<String> containing the words
+     */
+    private static List<String> extractWordsWithBreakIterator(String line) {
 
         List<String> extractWords = new ArrayList<>(); // List with all the words from line
 
@@ -650,4 +5257,1043 @@ public class Exam {
 
         return extractWords; // Returns the split words
     }
+
+    /**
+     * Checks that the WordTokenizer finds exactly the same words as extractWordsWithBreakIterator() on every line of
+     * the text files of a directory, and that the vowels and suffixes computed on its offsets are the same as the ones
+     * computed on the Strings.
+     *
+     * @param dir the directory containing the reference corpus
+     * @return the number of lines where the two tokenizers disagree
+     */
+    private static long checkTokenizer(Path dir) {
+
+        AtomicLong checkedLines = new AtomicLong(0); // Number of lines that have been compared
+        AtomicLong mismatches = new AtomicLong(0); // Number of lines where the tokenizers disagree
+
+        try (Stream<Path> files = Files.walk(dir)) { // Walks through the directory
+            files.filter(Files::isRegularFile) // Checks whether is a regular file
+                    .filter(filePath -> filePath.toString().endsWith(".txt")) // Checks whether is a txt file
+                    .parallel() // The files are compared concurrently, each thread with its own tokenizer
+                    .forEach(filePath -> {
+                        try (Stream<String> lines = Files.lines(filePath)) {
+                            AtomicInteger counterOfLines = new AtomicInteger(0); // Counts the current line
+                            lines.forEach(line -> {
+                                counterOfLines.getAndIncrement();
+                                checkedLines.getAndIncrement();
+                                List<String> expected = extractWordsWithBreakIterator(line); // Words found by the reference
+                                WordTokenizer tokenizer = WordTokenizer.of(line); // Words found by the tokenizer
+                                boolean same = expected.equals(tokenizer.words());
+                                for (int i = 0; same && i < tokenizer.count(); i++) { // The offsets must give the same vowels and suffixes
+                                    String w = expected.get(i);
+                                    same = tokenizer.countVowels(i) == countVowels(w)
+                                            && tokenizer.endsWith(i, w)
+                                            && tokenizer.endsWith(i, w.substring(w.length() / 2))
+                                            && !tokenizer.endsWith(i, "#" + w);
+                                }
+                                if (!same && mismatches.getAndIncrement() < 10) // Reports only the first mismatches
+                                    System.out.println("Mismatch at " + filePath + ":" + counterOfLines.get()
+                                            + "\n\texpected: " + expected + "\n\tfound:    " + tokenizer.words());
+                            });
+                        } catch (IOException | UncheckedIOException exception) { // If an error occurs
+                            exception.printStackTrace(); // Prints the error
+                        }
+                    });
+        } catch (IOException | UncheckedIOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+
+        System.out.println("Checked " + checkedLines.get() + " lines, " + mismatches.get() + " mismatches");
+        return mismatches.get(); // Returns the number of lines where the tokenizers disagree
+    }
+
+    /**
+     * Splits lines into words without allocating: the words are reported as offsets into a char[] that is reused for
+     * every line, and they are folded to lowercase in place. A String is created only when a word is requested with
+     * word(). Each thread has its own tokenizer, obtained with of(), which also reuses the same BreakIterator for all
+     * the lines instead of creating a new one per line.
+     * <p>
+     * The words are exactly those found by extractWordsWithBreakIterator(); checkTokenizer() verifies it on a corpus.
+     */
+    private static class WordTokenizer {
+        private static final ThreadLocal<WordTokenizer> TOKENIZERS = ThreadLocal.withInitial(WordTokenizer::new); // the tokenizer of each thread
+
+        private final BreakIterator iterator = BreakIterator.getWordInstance(); // finds the boundaries of the words
+        private char[] text = new char[256]; // the current line, with its words folded to lowercase
+        private int[] starts = new int[64]; // the start offset of each word
+        private int[] ends = new int[64]; // the end offset of each word
+        private String[] folded = new String[64]; // the lowercase form of the words whose length changes when folded (rare), null for the others
+        private int count = 0; // the number of words of the current line
+
+        /**
+         * Method that splits a line using the tokenizer of the current thread
+         * @param line the line to split
+         * @return the tokenizer, which holds the words of the line until it is used again by the same thread
+         */
+        private static WordTokenizer of(String line) {
+            WordTokenizer tokenizer = TOKENIZERS.get();
+            tokenizer.tokenize(line);
+            return tokenizer;
+        }
+
+        /**
+         * Method that finds the words of a line
+         * @param line the line to split
+         */
+        private void tokenize(String line) {
+
+            if (text.length < line.length()) // If the line does not fit in the buffer
+                text = new char[Math.max(line.length(), text.length * 2)];
+            line.getChars(0, line.length(), text, 0); // Copies the line, no String is created
+            Arrays.fill(folded, 0, count, null); // Forgets the words of the previous line
+            count = 0;
+
+            iterator.setText(line); // Set the text of the break iterator with the line
+            int start = iterator.first(); // Indicates the index of the first character of the first word of the text
+            for (int end = iterator.next(); end != BreakIterator.DONE; start = end, end = iterator.next()) { // While there are still words
+                String special = foldCase(line, start, end); // Folds the word to lowercase in place
+                char first = special == null ? text[start] : special.charAt(0); // First character of the lowercase word
+                if (Character.isLetterOrDigit(first)) // If the word starts with a letter or digit (checks if it's actually a word)
+                    add(start, end, special);
+            }
+            QueryStats.countTokens(count);
+        }
+
+        /**
+         * Method that folds a word of the line to lowercase in place. ASCII letters are folded directly; other
+         * characters are folded with String.toLowerCase(Locale.ENGLISH), exactly as extractWordsWithBreakIterator() does.
+         * @param line the line
+         * @param start the start of the word
+         * @param end the end of the word
+         * @return null if the word has been folded in place, or its lowercase form if it has a different length
+         */
+        private String foldCase(String line, int start, int end) {
+
+            boolean ascii = true; // Whether the word contains only ASCII characters
+            for (int i = start; i < end; i++) {
+                char c = text[i];
+                if (c >= 0x80)
+                    ascii = false;
+                else if (c >= 'A' && c <= 'Z')
+                    text[i] = (char) (c + ('a' - 'A'));
+            }
+            if (ascii)
+                return null;
+
+            String lowercase = line.substring(start, end).toLowerCase(Locale.ENGLISH); // Rules that depend on the context, e.g. the final sigma
+            if (lowercase.length() != end - start) // If it does not fit in place
+                return lowercase;
+
+            lowercase.getChars(0, lowercase.length(), text, start);
+            return null;
+        }
+
+        /**
+         * Method that adds a word to the words of the line
+         * @param start the start of the word
+         * @param end the end of the word
+         * @param special the lowercase form of the word if it could not be folded in place, null otherwise
+         */
+        private void add(int start, int end, String special) {
+            if (count == starts.length) { // If the arrays are full
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                folded = Arrays.copyOf(folded, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            folded[count] = special;
+            count++;
+        }
+
+        /**
+         * @return the number of words of the line
+         */
+        private int count() {
+            return count;
+        }
+
+        /**
+         * Method that creates the String of a word
+         * @param i the index of the word
+         * @return the word, in lowercase
+         */
+        private String word(int i) {
+            return folded[i] != null ? folded[i] : new String(text, starts[i], ends[i] - starts[i]);
+        }
+
+        /**
+         * Method that creates the Strings of all the words of the line
+         * @return the words, in lowercase
+         */
+        private List<String> words() {
+            List<String> words = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                words.add(word(i));
+            return words;
+        }
+
+        /**
+         * Method that finds all the suffixes of a trie that a word ends with, without creating the String of the word
+         * @param i the index of the word
+         * @param trie the suffixes
+         * @param onMatch receives the id of each suffix of the word
+         */
+        private void matchSuffixes(int i, SuffixTrie trie, IntConsumer onMatch) {
+            if (folded[i] != null)
+                trie.match(folded[i].toCharArray(), 0, folded[i].length(), onMatch);
+            else
+                trie.match(text, starts[i], ends[i], onMatch);
+        }
+
+        /**
+         * Method that checks whether a word ends with a suffix, without creating the String of the word
+         * @param i the index of the word
+         * @param suffix the suffix
+         * @return True or False
+         */
+        private boolean endsWith(int i, String suffix) {
+
+            if (folded[i] != null)
+                return folded[i].endsWith(suffix);
+
+            int offset = ends[i] - suffix.length(); // Where the suffix would start
+            if (offset < starts[i]) // If the word is shorter than the suffix
+                return false;
+
+            for (int j = 0; j < suffix.length(); j++)
+                if (text[offset + j] != suffix.charAt(j))
+                    return false;
+
+            return true;
+        }
+
+        /**
+         * Method that returns the number of vowels of a word, without creating the String of the word
+         * @param i the index of the word
+         * @return number of vowels that the word contains
+         */
+        private int countVowels(int i) {
+
+            if (folded[i] != null)
+                return Exam.countVowels(folded[i]);
+
+            return AsciiKernels.countVowels(text, starts[i], ends[i]); // 4 characters at a time
+        }
+
+        /**
+         * Method that looks up a word in a WordIds, without creating the String of the word
+         * @param i the index of the word
+         * @param ids the known words
+         * @return the id of the word, or -1 if it is not known
+         */
+        private int idOf(int i, WordIds ids) {
+            return folded[i] != null ? ids.find(folded[i]) : ids.find(text, starts[i], ends[i]);
+        }
+
+        /**
+         * Method that finds the first word of the line with the given number of vowels
+         * @param vowels the number of vowels
+         * @return the word, or null if there is no such word
+         */
+        private String firstWordWithVowels(int vowels) {
+            for (int i = 0; i < count; i++)
+                if (countVowels(i) == vowels)
+                    return word(i);
+            return null;
+        }
+    }
+
+    /********************************** Used in the statistics *****************************************************/
+
+    /**
+     * Statistics of a query: files discovered and processed, bytes, lines and tokens read, maximum depth of the queue
+     * of tasks, time spent in each phase (walk, waiting for results, merging them, shutdown) and the slowest files.
+     * They are printed to System.err when the JVM is started with -Dexam.stats=true (for example
+     * java -Dexam.stats=true Exam allLines data). When the statistics are disabled, the counters in the inner loops are
+     * skipped by a check of a static final field, which the JIT removes.
+     * <p>
+     * Independently of -Dexam.stats, every query and every file emit a JFR event (exam.Query and exam.FileScan),
+     * which costs nothing unless a flight recording enables them.
+     */
+    private static class QueryStats {
+        private static final boolean ENABLED = Boolean.getBoolean("exam.stats"); // whether the statistics are collected
+        private static final int SLOWEST_FILES = 5; // the number of slowest files that are reported
+        private static final ThreadLocal<QueryStats> CURRENT = new ThreadLocal<>(); // the statistics of the query of the task running on the thread
+
+        private final String query; // the name of the query
+        private final Path dir; // the directory searched by the query
+        private final long start = System.nanoTime(); // when the query started
+        private final LongAdder filesDiscovered = new LongAdder(); // files submitted to the executor
+        private final LongAdder filesProcessed = new LongAdder(); // files whose task has run
+        private final LongAdder bytes = new LongAdder(); // bytes of the files that have been processed
+        private final LongAdder lines = new LongAdder(); // lines that have been read
+        private final LongAdder tokens = new LongAdder(); // words produced by the tokenizer
+        private final AtomicInteger queued = new AtomicInteger(0); // tasks submitted but not started yet
+        private final AtomicInteger maxQueued = new AtomicInteger(0); // the highest value of queued
+        private final Map<String, Long> phases = new LinkedHashMap<>(); // nanoseconds spent in each phase
+        private String phase = "walk"; // the current phase
+        private long phaseStart = start; // when the current phase started
+        private long waiting = 0; // nanoseconds spent waiting for results in take()
+        private long waitingInMerge = 0; // the part of waiting spent after the walk
+        private String schedule; // the decisions of FileScheduler, null if the files were not scheduled by size
+        private String dedup; // the copies found by ContentDedup, null if the files were not deduplicated
+        private final PriorityQueue<Object[]> slowest = new PriorityQueue<>(Comparator.comparingLong(file -> (long) file[0])); // the slowest files as {nanoseconds, path}
+        private final QueryEvent event = new QueryEvent(); // the JFR event of the query
+
+        private QueryStats(String query, Path dir) {
+            this.query = query;
+            this.dir = dir;
+            event.begin();
+        }
+
+        /**
+         * Method that starts collecting the statistics of a query
+         * @param query the name of the query
+         * @param dir the directory searched by the query
+         * @return the statistics of the query
+         */
+        private static QueryStats start(String query, Path dir) {
+            return new QueryStats(query, dir);
+        }
+
+        /**
+         * @return the statistics of the query of the task running on this thread, null if there is none
+         */
+        private static QueryStats current() {
+            return ENABLED ? CURRENT.get() : null;
+        }
+
+        /**
+         * Method that runs a task of a query, counting the file it processes
+         * @param file the file processed by the task
+         * @param size the size of the file, as listed by the walk
+         * @param task the task
+         * @param <T> the type of the result of the task
+         * @return the task, wrapped so that it updates the statistics
+         */
+        private <T> Callable<T> track(Path file, long size, Callable<T> task) {
+
+            if (ENABLED) {
+                filesDiscovered.increment();
+                maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+            }
+
+            return () -> {
+                FileScanEvent fileEvent = new FileScanEvent(); // The JFR event of the file
+                long begin = System.nanoTime();
+                fileEvent.begin();
+                if (ENABLED)
+                    queued.decrementAndGet();
+
+                T result = with(this, task::call);
+
+                fileEvent.end();
+                if (fileEvent.shouldCommit() || ENABLED) {
+                    fileEvent.query = query;
+                    fileEvent.path = file.toString();
+                    fileEvent.bytes = size;
+                    fileEvent.commit();
+                    if (ENABLED)
+                        fileProcessed(file, size, System.nanoTime() - begin);
+                }
+                return result;
+            };
+        }
+
+        /**
+         * Method that runs a piece of work on behalf of the given statistics, so that the lines and tokens read by the
+         * current thread are counted in them
+         * @param stats the statistics, or null
+         * @param work the work
+         * @param <T> the type of the result of the work
+         * @return the result of the work
+         * @throws Exception if the work fails
+         */
+        private static <T, E extends Exception> T with(QueryStats stats, ThrowingSupplier<T, E> work) throws E {
+
+            if (!ENABLED || stats == null)
+                return work.get();
+
+            QueryStats previous = CURRENT.get();
+            CURRENT.set(stats);
+            try {
+                return work.get();
+            } finally {
+                CURRENT.set(previous);
+            }
+        }
+
+        /**
+         * Method that records a processed file
+         * @param file the file
+         * @param size the size of the file
+         * @param nanos the time spent on the file
+         */
+        private synchronized void fileProcessed(Path file, long size, long nanos) {
+            filesProcessed.increment();
+            bytes.add(size);
+            slowest.add(new Object[]{nanos, file});
+            if (slowest.size() > SLOWEST_FILES) // Keeps only the slowest ones
+                slowest.poll();
+        }
+
+        /**
+         * Method that counts a line that has been read by the current thread
+         */
+        private static void countLine() {
+            if (ENABLED) {
+                QueryStats stats = CURRENT.get();
+                if (stats != null)
+                    stats.lines.increment();
+            }
+        }
+
+        /**
+         * Method that counts the lines of a stream as they are read by the current thread
+         * @param lines the lines
+         * @return the same lines
+         */
+        private static Stream<String> countLines(Stream<String> lines) {
+            return ENABLED ? lines.peek(line -> countLine()) : lines;
+        }
+
+        /**
+         * Method that counts the tokens produced by the current thread
+         * @param count the number of tokens
+         */
+        private static void countTokens(int count) {
+            if (ENABLED) {
+                QueryStats stats = CURRENT.get();
+                if (stats != null)
+                    stats.tokens.add(count);
+            }
+        }
+
+        /**
+         * Method that waits for the next result of a completion service, measuring the time spent waiting
+         * @param completionService the completion service
+         * @param <T> the type of the results
+         * @return the next completed task
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        private <T> Future<T> take(CompletionService<T> completionService) throws InterruptedException {
+
+            if (!ENABLED)
+                return completionService.take();
+
+            long begin = System.nanoTime();
+            Future<T> future = completionService.take();
+            long waited = System.nanoTime() - begin;
+            waiting += waited; // Only the thread of the query calls take(), during the walk and after it
+            if (phase.equals("merge"))
+                waitingInMerge += waited;
+            return future;
+        }
+
+        /**
+         * Method that records how the files of the query have been scheduled
+         * @param schedule the description of the schedule
+         */
+        private void scheduled(String schedule) {
+            this.schedule = schedule;
+        }
+
+        /**
+         * Method that records the copies found by ContentDedup
+         * @param dedup the description of the copies
+         */
+        private void deduplicated(String dedup) {
+            this.dedup = dedup;
+        }
+
+        /**
+         * Method that ends the current phase of the query and starts the next one
+         * @param next the name of the next phase
+         */
+        private void startPhase(String next) {
+            long now = System.nanoTime();
+            phases.merge(phase, now - phaseStart, Long::sum);
+            phase = next;
+            phaseStart = now;
+        }
+
+        /**
+         * Method that ends the query, commits its JFR event and prints the statistics if they are enabled
+         */
+        private void finish() {
+
+            startPhase("done");
+            event.end();
+            if (event.shouldCommit()) {
+                event.query = query;
+                event.directory = dir.toString();
+                event.commit();
+            }
+            if (!ENABLED)
+                return;
+
+            long merge = phases.getOrDefault("merge", 0L) - waitingInMerge; // The time spent merging is the time of the merge phase minus the time spent waiting in it
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT, "[stats] %s %s: %d files discovered, %d processed, %d bytes, %d lines, %d tokens, max queue depth %d%n",
+                    query, dir, filesDiscovered.sum(), filesProcessed.sum(), bytes.sum(), lines.sum(), tokens.sum(), maxQueued.get()));
+            report.append(String.format(Locale.ROOT, "[stats] %s phases: walk %.1f ms, waiting %.1f ms, merge %.1f ms, shutdown %.1f ms, total %.1f ms%n",
+                    query, phases.getOrDefault("walk", 0L) / 1e6, waiting / 1e6, merge / 1e6,
+                    phases.getOrDefault("shutdown", 0L) / 1e6, (System.nanoTime() - start) / 1e6));
+            if (schedule != null)
+                report.append("[stats] ").append(query).append(" schedule: ").append(schedule).append(System.lineSeparator());
+            if (dedup != null)
+                report.append("[stats] ").append(query).append(" dedup: ").append(dedup).append(System.lineSeparator());
+
+            List<Object[]> files = new ArrayList<>(slowest);
+            files.sort(Comparator.comparingLong(file -> -(long) file[0])); // The slowest first
+            report.append("[stats] ").append(query).append(" slowest files:");
+            files.forEach(file -> report.append(String.format(Locale.ROOT, " %s (%.1f ms)", file[1], (long) file[0] / 1e6)));
+            System.err.println(report);
+        }
+    }
+
+    /**
+     * A computation that can throw a checked exception, used by QueryStats.with().
+     * @param <T> the type of the result
+     * @param <E> the type of the exception
+     */
+    @FunctionalInterface
+    private interface ThrowingSupplier<T, E extends Exception> {
+        T get() throws E;
+    }
+
+    /**
+     * JFR event emitted for each query.
+     */
+    @Name("exam.Query")
+    @Label("Exam Query")
+    @Category("Exam")
+    private static class QueryEvent extends Event {
+        @Label("Query")
+        private String query;
+        @Label("Directory")
+        private String directory;
+    }
+
+    /**
+     * JFR event emitted for each file processed by a query.
+     */
+    @Name("exam.FileScan")
+    @Label("Exam File Scan")
+    @Category("Exam")
+    private static class FileScanEvent extends Event {
+        @Label("Query")
+        private String query;
+        @Label("Path")
+        private String path;
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+    }
+
+    /********************************** Used in the benchmarks *****************************************************/
+
+    /**
+     * Words used by generateCorpus(): ASCII words of different lengths and vowel counts, Danish, German, Greek and CJK
+     * words, words with combining marks and emoji, numbers and contractions.
+     */
+    private static final String[] CORPUS_WORDS = {
+            "the", "is", "a", "concurrent", "program", "running", "queueing", "rhythm", "strength", "aeiou",
+            "Hello", "WORLD", "don't", "3.14", "2022", "snake_case", "e-mail", "thread", "pool", "executor",
+            "bl\u00e5b\u00e6r", "\u00e6ble", "\u00f8resund", "Stra\u00dfe", "na\u00efve", "caf\u00e9", // Danish, German, French
+            "\u03a3\u039f\u03a6\u0399\u0391", "\u03bb\u03cc\u03b3\u03bf\u03c2", "\u65e5\u672c\u8a9e", "\u4e2d\u6587", // Greek, Japanese, Chinese
+            "e\u0301te\u0301", "emoji\ud83d\ude00", "\u0130stanbul", "\u01c5emal", "\u00dcn\u00efc\u00f6d\u00e9" // combining marks, surrogate pairs, special case mappings
+    };
+
+    /**
+     * Generates a deterministic corpus of text files for the benchmarks. The same profile, scale and seed always
+     * generate the same files. The profiles cover the cases that are hard for the four queries:
+     * - tiny: many tiny files (10000 files of about 100 bytes at scale 1);
+     * - huge: a few huge files (2 files of 32 MiB at scale 1);
+     * - deep: a deep tree of directories (64 levels with 4 files each);
+     * - unicode: files of non-ASCII text with combining marks and surrogate pairs;
+     * - longlines: files with pathological long lines (1 to 4 MiB each);
+     * - mixed: all of the above, in separate subdirectories.
+     *
+     * @param dir     the directory where the corpus is generated
+     * @param profile the profile of the corpus
+     * @param scale   multiplies the number or the size of the files
+     * @param seed    the seed of the random generator
+     * @return the number of bytes written
+     * @throws IOException if the files cannot be written
+     */
+    private static long generateCorpus(Path dir, String profile, int scale, long seed) throws IOException {
+
+        Random random = new Random(seed); // Deterministic generator
+        long bytes = 0; // Bytes written so far
+
+        switch (profile) {
+            case "tiny":
+                for (int i = 0; i < 10_000 * scale; i++) // Spread over 100 directories, as a file system would be
+                    bytes += writeCorpusFile(dir.resolve("d" + (i % 100)).resolve("tiny" + i + ".txt"), random, 3, 8, false);
+                break;
+            case "huge":
+                for (int i = 0; i < 2; i++)
+                    bytes += writeCorpusFile(dir.resolve("huge" + i + ".txt"), random, (32 << 20) * (long) scale / 80, 12, false);
+                break;
+            case "deep":
+                Path level = dir;
+                for (int depth = 0; depth < 64; depth++) { // Each directory contains the next one
+                    level = level.resolve("level" + depth);
+                    for (int i = 0; i < 4 * scale; i++)
+                        bytes += writeCorpusFile(level.resolve("deep" + i + ".txt"), random, 50, 10, false);
+                }
+                break;
+            case "unicode":
+                for (int i = 0; i < 200 * scale; i++)
+                    bytes += writeCorpusFile(dir.resolve("unicode" + i + ".txt"), random, 800, 10, true);
+                break;
+            case "longlines":
+                for (int i = 0; i < 10 * scale; i++) // A few lines of 1 to 4 MiB each
+                    bytes += writeCorpusFile(dir.resolve("long" + i + ".txt"), random, 3, (1 << 20) / 8 * (1 + random.nextInt(4)), false);
+                break;
+            case "mixed":
+                for (String part : List.of("tiny", "huge", "deep", "unicode", "longlines"))
+                    bytes += generateCorpus(dir.resolve(part), part, scale, random.nextLong());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown profile: " + profile + ". Use tiny, huge, deep, unicode, longlines or mixed.");
+        }
+
+        return bytes; // Returns the number of bytes written
+    }
+
+    /**
+     * Method used in generateCorpus() that writes a text file of random words. Every line starts with the same word,
+     * so that allLines has results, and the line terminators are chosen at random among "\n", "\r\n" and "\r".
+     * @param file the file to write
+     * @param random the generator
+     * @param lines the number of lines
+     * @param wordsPerLine the average number of words of each line
+     * @param unicode whether non-ASCII words must be used
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     */
+    private static long writeCorpusFile(Path file, Random random, long lines, int wordsPerLine, boolean unicode) throws IOException {
+
+        Files.createDirectories(file.getParent());
+        String terminator = List.of("\n", "\r\n", "\r").get(random.nextInt(3)); // Line terminator of the file
+        String common = CORPUS_WORDS[random.nextInt(CORPUS_WORDS.length)]; // Word appearing on every line
+        int firstWord = unicode ? 20 : 0; // ASCII words are at the beginning of CORPUS_WORDS
+        int lastWord = unicode ? CORPUS_WORDS.length : 20;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (long line = 0; line < lines; line++) {
+                if (random.nextInt(20) == 0) { // Some lines are blank
+                    writer.write(terminator);
+                    continue;
+                }
+                writer.write(common);
+                int words = 1 + random.nextInt(2 * wordsPerLine);
+                for (int i = 0; i < words; i++) {
+                    writer.write(random.nextInt(8) == 0 ? ", " : " ");
+                    writer.write(CORPUS_WORDS[firstWord + random.nextInt(lastWord - firstWord)]);
+                }
+                if (line < lines - 1 || random.nextBoolean()) // The last line may have no terminator
+                    writer.write(terminator);
+            }
+        }
+
+        return Files.size(file); // Returns the size of the file
+    }
+
+    /**
+     * Measures one of the four queries of method main on a directory, in this JVM. The query is run a few times to
+     * warm up the JIT, then measured; the table row reports the median time, the throughput in MB/s and the
+     * allocation rate. Allocations are computed from the heap usage and the memory reclaimed by each garbage
+     * collection, as the pool threads that allocate do not survive the query.
+     *
+     * @param dir        the directory to search
+     * @param query      allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+     * @param warmups    the number of runs that are not measured
+     * @param iterations the number of runs that are measured
+     * @return the row of the table with the results
+     */
+    private static String benchmark(Path dir, String query, int warmups, int iterations) {
+
+        Runnable run = benchmarkQuery(dir, query); // The query to measure
+        long corpusBytes = 0; // Size of the text files that the query reads
+        try {
+            corpusBytes = listTextFiles(dir).values().stream().mapToLong(BasicFileAttributes::size).sum();
+        } catch (IOException exception) { // If an error occurs
+            exception.printStackTrace(); // Prints the error
+        }
+
+        for (int i = 0; i < warmups; i++) // Warms up the JIT
+            run.run();
+
+        AllocationMeter meter = new AllocationMeter(); // Starts counting the allocations
+        long[] times = new long[iterations]; // Time of each run, in nanoseconds
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            run.run();
+            times[i] = System.nanoTime() - start;
+        }
+        long allocatedBytes = meter.allocatedBytes(); // Allocations of all the runs
+        Arrays.sort(times);
+
+        double seconds = times[iterations / 2] / 1e9; // Median time of a run
+        double totalSeconds = Arrays.stream(times).sum() / 1e9; // Time of all the runs
+        return String.format(Locale.ROOT, "%-12s %7d %10.1f %10.1f %12.1f %12.2f",
+                query, QueryExecutor.THREADS, seconds * 1000, corpusBytes / 1e6 / seconds,
+                allocatedBytes / 1e6 / totalSeconds, corpusBytes == 0 ? 0 : allocatedBytes / (double) iterations / corpusBytes);
+    }
+
+    /**
+     * The header of the table printed by the benchmarks.
+     */
+    private static final String BENCHMARK_HEADER = String.format(Locale.ROOT, "%-12s %7s %10s %10s %12s %12s",
+            "query", "threads", "median ms", "MB/s", "alloc MB/s", "alloc B/B");
+
+    /**
+     * Method that turns a query given on the command line into a call of the corresponding method
+     * @param dir the directory to search
+     * @param query allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+     * @return the call of the query
+     */
+    private static Runnable benchmarkQuery(Path dir, String query) {
+
+        String[] parts = query.split(":"); // The query and its arguments
+        switch (parts[0]) {
+            case "allLines":
+                return () -> findWordsCommonToAllLines(dir);
+            case "longestLine":
+                return () -> longestLine(dir);
+            case "vowels":
+                checkArguments(parts.length == 2, "Usage: vowels:<vowels>");
+                return () -> wordWithVowels(dir, Integer.parseInt(parts[1]));
+            case "suffix":
+                checkArguments(parts.length == 3, "Usage: suffix:<suffix>:<length>");
+                return () -> wordsEndingWith(dir, parts[1], Integer.parseInt(parts[2]));
+            default:
+                throw new IllegalArgumentException("Unrecognised query: " + query);
+        }
+    }
+
+    /**
+     * Measures the scaling of a query from 1 to N threads. Each thread count is measured in a new JVM started with
+     * -XX:ActiveProcessorCount and -Dexam.threads, so that both the pools of QueryExecutor and the JVM itself use that
+     * number of threads. This requires Exam to be compiled, so that the new JVM can find it on the class path.
+     * A run that fails is reported with the exit status of its JVM.
+     *
+     * @param dir     the directory to search
+     * @param query   allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+     * @param threads the numbers of threads to measure
+     */
+    private static void benchmarkScaling(Path dir, String query, List<Integer> threads) {
+
+        System.out.println(BENCHMARK_HEADER);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString(); // The same JVM that is running now
+        for (int n : threads) { // For each number of threads
+            try {
+                Process process = new ProcessBuilder(java, "-XX:ActiveProcessorCount=" + n, "-Dexam.threads=" + n,
+                        "-cp", System.getProperty("java.class.path"), Tools.class.getName(), "benchRun", dir.toString(), query)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    output.lines().forEach(System.out::println); // Prints the row of the table
+                }
+                int status = process.waitFor(); // The row is missing if the run has failed
+                if (status != 0)
+                    System.err.println("The run with " + n + " threads exited with status " + status);
+            } catch (IOException | InterruptedException exception) { // If an error occurs
+                exception.printStackTrace(); // Prints the error
+            }
+        }
+    }
+
+    /**
+     * Compares the modes of QueryExecutor on the same directory, in this JVM: each mode is measured like in benchmark().
+     * The custom mode is measured with a fixed thread pool of -Dexam.threads threads, which is supplied like a caller
+     * of Tools.useExecutor() would.
+     *
+     * @param dir   the directory to search
+     * @param query allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+     */
+    private static void benchmarkExecutors(Path dir, String query) {
+
+        System.out.println(String.format(Locale.ROOT, "%-8s ", "executor") + BENCHMARK_HEADER);
+        for (String mode : Arrays.asList("fresh", "shared", "virtual", "custom")) { // For each mode
+            ExecutorService custom = null; // The executor supplied in the custom mode
+            if (mode.equals("custom")) {
+                custom = Executors.newFixedThreadPool(QueryExecutor.THREADS);
+                QueryExecutor.use(custom);
+            } else {
+                QueryExecutor.setMode(mode);
+            }
+            System.out.println(String.format(Locale.ROOT, "%-8s ", mode) + benchmark(dir, query, 3, 5));
+            if (custom != null)
+                custom.shutdown(); // The caller shuts down its own executor
+        }
+    }
+
+    /**
+     * Counts the bytes allocated by all the threads of the JVM while it is alive: the growth of the heap plus the memory
+     * reclaimed by every garbage collection, which is reported by the notifications of the garbage collectors.
+     */
+    private static class AllocationMeter {
+        private final AtomicLong reclaimedBytes = new AtomicLong(0); // memory reclaimed by the collections so far
+        private final long heapBefore; // heap usage when the meter was created
+        private final List<NotificationEmitter> emitters = new ArrayList<>(); // the garbage collectors that are observed
+        private final NotificationListener listener = (notification, handback) -> {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                return;
+            GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+            long before = info.getMemoryUsageBeforeGc().values().stream().mapToLong(MemoryUsage::getUsed).sum();
+            long after = info.getMemoryUsageAfterGc().values().stream().mapToLong(MemoryUsage::getUsed).sum();
+            reclaimedBytes.addAndGet(Math.max(0, before - after));
+        };
+
+        private AllocationMeter() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+                if (collector instanceof NotificationEmitter) {
+                    ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+                    emitters.add((NotificationEmitter) collector);
+                }
+            heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        /**
+         * Method that stops the meter
+         * @return the bytes allocated since the meter was created
+         */
+        private long allocatedBytes() {
+
+            long heapAfter = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            for (NotificationEmitter emitter : emitters)
+                try {
+                    emitter.removeNotificationListener(listener);
+                } catch (ListenerNotFoundException exception) { // Cannot happen, the listener has been added
+                    throw new InternalException(exception.getMessage());
+                }
+
+            return heapAfter - heapBefore + reclaimedBytes.get();
+        }
+    }
+
+    /********************************** Additional commands *********************************************************/
+
+    /**
+     * Command line interface for the commands that are not part of method main, which cannot be changed.
+     * After compiling Exam.java, run it with: java -cp <classes> Exam$Tools help
+     */
+    public static class Tools {
+        public static void main(String[] args) {
+            checkArguments(args.length > 0, "You must choose a command: help, multi, index, indexQuery, tokenizerCheck, generate, bench, benchRun, benchExecutors, stream, serve, ask, batch, topLines, kernelCheck or shards.");
+            switch (args[0]) {
+                case "help":
+                    System.out.println(
+                            "Available commands: help, multi, index, indexQuery, tokenizerCheck, generate, bench, benchRun, benchExecutors, stream, serve, ask, batch, topLines, kernelCheck or shards.\nFor example, try:\n\tjava Exam$Tools multi data allLines longestLine vowels:3 suffix:ing:10");
+                    break;
+                case "multi":
+                    checkArguments(args.length > 2,
+                            "Usage: java Exam$Tools multi <directory> <query>... where a query is allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>");
+                    printResults(runQueries(Paths.get(args[1]), parseQueries(Arrays.copyOfRange(args, 2, args.length))), System.out);
+                    break;
+                case "index":
+                    checkArguments(args.length == 3, "Usage: java Exam$Tools index <directory> <index file>");
+                    try {
+                        int scannedFiles = buildWordIndex(Paths.get(args[1]), Paths.get(args[2]));
+                        System.out.println("Index written to " + args[2] + ", " + scannedFiles + " files scanned");
+                    } catch (IOException exception) { // If an error occurs
+                        exception.printStackTrace(); // Prints the error
+                    }
+                    break;
+                case "indexQuery":
+                    checkArguments(args.length > 3,
+                            "Usage: java Exam$Tools indexQuery <directory> <index file> <query>... where a query is allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>");
+                    printResults(queryWordIndex(Paths.get(args[1]), Paths.get(args[2]), parseQueries(Arrays.copyOfRange(args, 3, args.length))), System.out);
+                    break;
+                case "tokenizerCheck":
+                    checkArguments(args.length == 2, "Usage: java Exam$Tools tokenizerCheck <directory>");
+                    checkTokenizer(Paths.get(args[1]));
+                    break;
+                case "generate":
+                    checkArguments(args.length == 4 || args.length == 5, "Usage: java Exam$Tools generate <directory> <profile> <scale> [seed]");
+                    try {
+                        long bytes = generateCorpus(Paths.get(args[1]), args[2], Integer.parseInt(args[3]), args.length == 5 ? Long.parseLong(args[4]) : 563);
+                        System.out.println("Generated " + bytes + " bytes in " + args[1]);
+                    } catch (IOException exception) { // If an error occurs
+                        exception.printStackTrace(); // Prints the error
+                    }
+                    break;
+                case "bench":
+                    checkArguments(args.length > 2,
+                            "Usage: java Exam$Tools bench <directory> <query> [threads]... where a query is allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>");
+                    List<Integer> threads = new ArrayList<>();
+                    for (int i = 3; i < args.length; i++)
+                        threads.add(Integer.parseInt(args[i]));
+                    if (threads.isEmpty()) { // Measures from 1 thread to all the available processors, doubling the threads each time
+                        int processors = Runtime.getRuntime().availableProcessors();
+                        for (int n = 1; n <= processors; n *= 2)
+                            threads.add(n);
+                        if (threads.get(threads.size() - 1) != processors) // If the number of processors is not a power of 2
+                            threads.add(processors);
+                    }
+                    benchmarkScaling(Paths.get(args[1]), args[2], threads);
+                    break;
+                case "benchRun":
+                    checkArguments(args.length == 3, "Usage: java Exam$Tools benchRun <directory> <query>");
+                    System.out.println(benchmark(Paths.get(args[1]), args[2], 3, 5));
+                    break;
+                case "benchExecutors":
+                    checkArguments(args.length == 3, "Usage: java Exam$Tools benchExecutors <directory> <query>");
+                    benchmarkExecutors(Paths.get(args[1]), args[2]);
+                    break;
+                case "batch":
+                    checkArguments(args.length == 3,
+                            "Usage: java Exam$Tools batch <directory> <query file> where the file has a query per line: allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>");
+                    try {
+                        printResults(runQueries(Paths.get(args[1]), readQueryFile(Paths.get(args[2]))), System.out);
+                    } catch (IOException exception) { // If an error occurs
+                        exception.printStackTrace(); // Prints the error
+                    }
+                    break;
+                case "topLines":
+                    checkArguments(args.length == 3 && Integer.parseInt(args[2]) > 0, "Usage: java Exam$Tools topLines <directory> <k> where k is positive");
+                    longestLines(Paths.get(args[1]), Integer.parseInt(args[2])).forEach(line ->
+                            System.out.println(line.chars + " letters at " + line.filepath + ":" + line.line));
+                    break;
+                case "shards":
+                    checkArguments(args.length > 3 && Integer.parseInt(args[2]) > 0,
+                            "Usage: java Exam$Tools shards <directory> <workers> <query>... where workers is positive and a query is allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>");
+                    printResults(runShardedQueries(Paths.get(args[1]), Integer.parseInt(args[2]), Arrays.copyOfRange(args, 3, args.length)), System.out);
+                    break;
+                case "shardWorker": // Started by the shards command, not by the user
+                    checkArguments(args.length > 1, "Usage: java Exam$Tools shardWorker <query>... which is started by the shards command");
+                    runShardWorker(Arrays.copyOfRange(args, 1, args.length));
+                    break;
+                case "kernelCheck":
+                    checkArguments(args.length == 2, "Usage: java Exam$Tools kernelCheck <directory>");
+                    checkKernels(Paths.get(args[1]));
+                    break;
+                case "serve":
+                    checkArguments(args.length == 3, "Usage: java Exam$Tools serve <directory> <socket>");
+                    try {
+                        serve(Paths.get(args[1]), Paths.get(args[2]));
+                    } catch (IOException exception) { // If an error occurs
+                        exception.printStackTrace(); // Prints the error
+                    }
+                    break;
+                case "ask":
+                    checkArguments(args.length > 2,
+                            "Usage: java Exam$Tools ask <socket> <query>... where a query is allLines, longestLine, vowels:<vowels>, suffix:<suffix>:<length> or stop");
+                    try {
+                        askDaemon(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+                    } catch (IOException exception) { // If an error occurs
+                        exception.printStackTrace(); // Prints the error
+                    }
+                    break;
+                case "stream":
+                    checkArguments(args.length == 3 && (args[2].equals("allLines") || args[2].matches("suffix:.*:\\d+")),
+                            "Usage: java Exam$Tools stream <directory> <query> where a query is allLines or suffix:<suffix>:<length>");
+                    Path dir = Paths.get(args[1]);
+                    if (args[2].equals("allLines")) {
+                        printPublished(publish((sink, stop) -> streamWordsCommonToAllLines(dir, sink, stop)));
+                    } else {
+                        int colon = args[2].lastIndexOf(':'); // The suffix may contain colons
+                        String suffix = args[2].substring("suffix:".length(), colon);
+                        int length = Integer.parseInt(args[2].substring(colon + 1));
+                        printPublished(publish((sink, stop) -> streamWordsEndingWith(dir, suffix, length, sink, stop)));
+                    }
+                    break;
+                default:
+                    System.out.println("Unrecognised command: " + args[0] + ". Try java Exam$Tools help.");
+                    break;
+            }
+        }
+
+        /**
+         * Method that makes the queries run on an executor supplied by the caller, instead of the executor chosen
+         * with -Dexam.executor. The executor is not shut down by the queries.
+         * @param executor the executor
+         */
+        public static void useExecutor(ExecutorService executor) {
+            QueryExecutor.use(executor);
+        }
+
+        /**
+         * Method that reads the queries of the batch command: one query per line, in the same form used on the command
+         * line. Blank lines and lines starting with # are ignored.
+         * @param file the query file
+         * @return the requested queries
+         * @throws IOException if the file cannot be read
+         */
+        private static QuerySet readQueryFile(Path file) throws IOException {
+            try (Stream<String> lines = Files.lines(file)) {
+                return parseQueries(lines.map(String::strip)
+                        .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                        .toArray(String[]::new));
+            }
+        }
+
+        /**
+         * Method that turns the queries given on the command line into a QuerySet
+         * @param args queries in the form allLines, longestLine, vowels:<vowels> or suffix:<suffix>:<length>
+         * @return the requested queries
+         */
+        private static QuerySet parseQueries(String[] args) {
+
+            boolean allLines = false; // Whether allLines has been requested
+            boolean longestLine = false; // Whether longestLine has been requested
+            Set<Integer> vowels = new LinkedHashSet<>(); // Requested numbers of vowels
+            Map<String, Integer> suffixes = new LinkedHashMap<>(); // Requested suffixes with their limits
+
+            for (String arg : args) { // For each query
+                if (arg.equals("allLines"))
+                    allLines = true;
+                else if (arg.equals("longestLine"))
+                    longestLine = true;
+                else if (arg.startsWith("vowels:"))
+                    vowels.add(Integer.parseInt(arg.substring("vowels:".length())));
+                else if (arg.startsWith("suffix:") && arg.lastIndexOf(':') > "suffix:".length()) // The suffix itself may contain ':'
+                    suffixes.put(arg.substring("suffix:".length(), arg.lastIndexOf(':')), Integer.parseInt(arg.substring(arg.lastIndexOf(':') + 1)));
+                else
+                    throw new IllegalArgumentException("Unrecognised query: " + arg);
+            }
+
+            return new QuerySet(allLines, longestLine, vowels, suffixes); // Returns the requested queries
+        }
+
+        /**
+         * Method that prints the results of runQueries() in the same format used by method main
+         * @param results results of the queries
+         * @param out where the results are printed
+         */
+        private static void printResults(QueryResults results, PrintStream out) {
+
+            if (results.queries.allLines) { // If allLines has been requested
+                out.println("== allLines");
+                out.println("Found " + results.wordsCommonToAllLines.size() + " words");
+                results.wordsCommonToAllLines.forEach(locatedWord ->
+                        out.println(locatedWord.word + ":" + locatedWord.filepath));
+            }
+
+            if (results.queries.longestLine) { // If longestLine has been requested
+                out.println("== longestLine");
+                if (results.longestLine != null)
+                    out.println("Line with highest number of letters found at " + results.longestLine.filepath + ":" + results.longestLine.line);
+                else
+                    out.println("No line found.");
+            }
+
+            results.wordsWithVowels.forEach((vowels, word) -> { // For each requested number of vowels
+                out.println("== vowels " + vowels);
+                word.ifPresentOrElse(
+                        locatedWord -> out.println("Found " + locatedWord.word + " in " + locatedWord.filepath),
+                        () -> out.println("No word found with " + vowels + " vowels."));
+            });
+
+            results.wordsEndingWith.forEach((suffix, words) -> { // For each requested suffix
+                out.println("== suffix " + suffix);
+                words.forEach(loc -> out.println(loc.word + ":" + loc.filepath));
+            });
+        }
+    }
 }
\ No newline at end of file